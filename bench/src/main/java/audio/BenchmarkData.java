@@ -0,0 +1,32 @@
+package audio;
+
+import java.util.Random;
+
+// Deterministic input for the benchmarks: a few tones plus a little noise, so
+// results are comparable from run to run
+final class BenchmarkData
+{
+	private BenchmarkData()
+	{
+	}
+
+	static WaveData signal(final int rate, final int samples, final boolean stereo)
+	{
+		final Random random = new Random(42);
+		final double[] left = new double[samples];
+		final double[] right = new double[samples];
+		for (int i = 0; i < samples; i++)
+		{
+			final double t = i * 1.0 / rate;
+			left[i] = 0.4 * Math.sin(2.0 * Math.PI * 220.0 * t) + 0.2 * Math.sin(2.0 * Math.PI * 1375.0 * t) + 0.05 * random.nextGaussian();
+			right[i] = 0.3 * Math.sin(2.0 * Math.PI * 330.0 * t) + 0.2 * Math.sin(2.0 * Math.PI * 880.0 * t) + 0.05 * random.nextGaussian();
+		}
+
+		if (stereo)
+		{
+			return new WaveData(left, right, rate);
+		}
+
+		return new WaveData(left, rate);
+	}
+}
@@ -0,0 +1,58 @@
+package audio;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// DPCM recoding of 10 seconds of 32kHz audio, one pass and the fused cascade
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DPCMBenchmark
+{
+	private static final int RATE = 32000;
+
+	@Param({ "1", "2", "4", "6" })
+	public byte deltaBits;
+
+	@Param({ "8", "12", "16" })
+	public byte outputBits;
+
+	@Param({ "false", "true" })
+	public boolean stereo;
+
+	private WaveData data;
+	private WaveData silence;
+
+	@Benchmark
+	public WaveData cascade()
+	{
+		return new DPCMCascade(deltaBits, outputBits, 3).recode(data, silence);
+	}
+
+	@Benchmark
+	public WaveData recode()
+	{
+		return new DPCMRecoder(deltaBits, outputBits).recode(data);
+	}
+
+	@Setup
+	public void setup()
+	{
+		data = BenchmarkData.signal(RATE, RATE * 10, stereo);
+		silence = stereo ? new WaveData(new double[data.samples()], new double[data.samples()], RATE) : new WaveData(new double[data.samples()], RATE);
+	}
+}
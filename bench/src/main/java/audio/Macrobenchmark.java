@@ -0,0 +1,338 @@
+package audio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Runs the whole DPCM pipeline over the synthetic corpus with every configuration
+// and reports throughput, memory, GC time, the error of every stage and the
+// throughput of every stage Profile times. The configurations are the properties
+// files given, or a built in set; inputFile and outputFile are filled in per run,
+// and a configuration DPCM rejects is reported and skipped. Results go to
+// results.csv in the work directory. If baseline.csv is there too, configurations that got more than 25%
+// slower over the corpus and runs that got 10% less accurate are reported and the
+// exit code is 1
+public class Macrobenchmark
+{
+	static class Result
+	{
+		String input;
+		String config;
+		long samples;
+		double seconds;
+		double peakHeapMB;
+		long gcMillis;
+		ArrayList<String> stages = new ArrayList<>();
+		ArrayList<Double> errors = new ArrayList<>();
+		LinkedHashMap<String, long[]> stageTotals = new LinkedHashMap<>();
+
+		double finalError()
+		{
+			return errors.isEmpty() ? 0.0 : errors.get(errors.size() - 1);
+		}
+
+		double samplesPerSecond()
+		{
+			return samples / seconds;
+		}
+
+		// Samples per second of every profiled stage. The table stage counts table
+		// entries instead of samples
+		String stageThroughput(final String separator)
+		{
+			final StringBuilder retval = new StringBuilder();
+			stageTotals.forEach((name, total) -> retval.append(retval.length() > 0 ? separator : "").append(name).append('=').append(String.format("%.0f", total[1] / (Math.max(total[0], 1) / 1e9))));
+			return retval.toString();
+		}
+	}
+
+	private static final Pattern ERROR_LINE = Pattern.compile("Average absolute error in (.+) encoding was: (.+)");
+	private static final double MAX_SLOWDOWN = 0.25;
+	private static final double MAX_ERROR_INCREASE = 0.10;
+	private static final int REPEATS = 3;
+
+	private static Properties builtInConfig(final String name)
+	{
+		final Properties prop = new Properties();
+		prop.setProperty("sampleRate", "16000");
+		prop.setProperty("resultBits", "16");
+		prop.setProperty("synthMinFreq", "50");
+		prop.setProperty("synthMaxFreq", "1000");
+		prop.setProperty("synthCoarseStride", "0.05");
+		prop.setProperty("sineChannelBits", "4");
+		if (name.contains("dpcm"))
+		{
+			prop.setProperty("pcmChannels", "2");
+			prop.setProperty("deltaBits", "4");
+			prop.setProperty("outputBits", "12");
+		}
+
+		if (name.contains("sine"))
+		{
+			prop.setProperty("sineChannels", "1");
+		}
+
+		if (name.contains("pursuit"))
+		{
+			prop.setProperty("sineChannels", "3");
+			prop.setProperty("synthSolver", "pursuit");
+		}
+
+		return prop;
+	}
+
+	private static HashMap<String, Result> readResults(final File file) throws Exception
+	{
+		final HashMap<String, Result> retval = new HashMap<>();
+		final List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		for (final String line : lines.subList(1, lines.size()))
+		{
+			final String[] fields = line.split(",", -1);
+			final Result result = new Result();
+			result.input = fields[0];
+			result.config = fields[1];
+			result.samples = Long.parseLong(fields[2]);
+			result.seconds = Double.parseDouble(fields[3]);
+			if (!fields[7].isEmpty())
+			{
+				for (final String stage : fields[7].split(";"))
+				{
+					final int split = stage.lastIndexOf('=');
+					result.stages.add(stage.substring(0, split));
+					result.errors.add(Double.parseDouble(stage.substring(split + 1)));
+				}
+			}
+
+			retval.put(result.input + "," + result.config, result);
+		}
+
+		return retval;
+	}
+
+	public static void main(final String[] args) throws Exception
+	{
+		if (args.length == 0)
+		{
+			System.out.println("Usage: Macrobenchmark <work directory> [properties file ...]");
+			System.exit(0);
+		}
+
+		final File dir = new File(args[0]);
+		dir.mkdirs();
+
+		final ArrayList<String> names = new ArrayList<>();
+		final ArrayList<Properties> configs = new ArrayList<>();
+		if (args.length == 1)
+		{
+			for (final String name : new String[] { "dpcm", "sine", "sine+dpcm", "pursuit" })
+			{
+				names.add(name);
+				configs.add(builtInConfig(name));
+			}
+		}
+
+		for (int i = 1; i < args.length; i++)
+		{
+			names.add(new File(args[i]).getName());
+			configs.add(DPCM.readProperties(args[i]));
+		}
+
+		final ArrayList<SyntheticCorpus.Input> inputs = SyntheticCorpus.defaultInputs();
+		final ArrayList<File> files = SyntheticCorpus.write(dir, inputs);
+		final ArrayList<Result> results = new ArrayList<>();
+		for (int c = 0; c < configs.size(); c++)
+		{
+			for (int i = 0; i < inputs.size(); i++)
+			{
+				final Properties prop = new Properties();
+				prop.putAll(configs.get(c));
+				prop.setProperty("inputFile", files.get(i).getPath());
+				prop.setProperty("outputFile", new File(dir, "out.wav").getPath());
+				if (prop.getProperty("threads") == null)
+				{
+					prop.setProperty("threads", Integer.toString(Runtime.getRuntime().availableProcessors()));
+				}
+
+				final SyntheticCorpus.Input input = inputs.get(i);
+				// The fastest of a few runs, so a cold JIT or a stray pause doesn't look like a
+				// regression
+				Result result = null;
+				try
+				{
+					for (int r = 0; r < REPEATS; r++)
+					{
+						final Result attempt = run(prop);
+						if (result == null || attempt.seconds < result.seconds)
+						{
+							result = attempt;
+						}
+					}
+				}
+				catch (final DPCM.ConfigException e)
+				{
+					System.out.println(String.format("%-26s %-12s skipped: %s", input.name(), names.get(c), e.getMessage()));
+					continue;
+				}
+
+				result.input = input.name();
+				result.config = names.get(c);
+				result.samples = (long) (input.seconds * Integer.parseInt(prop.getProperty("sampleRate")));
+				results.add(result);
+				System.out.println(String.format("%-26s %-12s %12.0f samples/s %8.1f MB %6d ms GC  error %.6f", result.input, result.config, result.samplesPerSecond(), result.peakHeapMB, result.gcMillis, result.finalError()));
+				System.out.println("    " + result.stageThroughput(" "));
+			}
+		}
+
+		writeResults(new File(dir, "results.csv"), results);
+
+		final File baselineFile = new File(dir, "baseline.csv");
+		if (baselineFile.exists())
+		{
+			final HashMap<String, Result> baseline = readResults(baselineFile);
+			int regressions = 0;
+
+			// Single runs are too short to time reliably, so throughput is compared over
+			// the whole corpus for each configuration
+			final HashMap<String, double[]> totals = new HashMap<>();
+			for (final Result result : results)
+			{
+				final Result before = baseline.get(result.input + "," + result.config);
+				if (before == null)
+				{
+					continue;
+				}
+
+				final double[] total = totals.computeIfAbsent(result.config, k -> new double[3]);
+				total[0] += result.samples;
+				total[1] += result.seconds;
+				total[2] += before.seconds;
+			}
+
+			for (final String config : names)
+			{
+				final double[] total = totals.get(config);
+				if (total != null && total[1] > total[2] / (1.0 - MAX_SLOWDOWN))
+				{
+					System.out.println("Slower: " + config + " " + total[0] / total[2] + " -> " + total[0] / total[1] + " samples/s");
+					++regressions;
+				}
+			}
+
+			for (final Result result : results)
+			{
+				final Result before = baseline.get(result.input + "," + result.config);
+				if (before == null)
+				{
+					continue;
+				}
+
+				if (result.finalError() > before.finalError() * (1.0 + MAX_ERROR_INCREASE) + 1e-12)
+				{
+					System.out.println("Less accurate: " + result.input + " " + result.config + " " + before.finalError() + " -> " + result.finalError());
+					++regressions;
+				}
+			}
+
+			System.out.println(regressions + " regressions against " + baselineFile);
+			if (regressions > 0)
+			{
+				System.exit(1);
+			}
+		}
+	}
+
+	// One DPCM run in this JVM, with its console output captured for the stage errors
+	// and its stages timed by a Profile of its own
+	private static Result run(final Properties prop) throws Exception
+	{
+		final Profile profile = new Profile(null);
+		System.gc();
+		final List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+		for (final MemoryPoolMXBean pool : pools)
+		{
+			pool.resetPeakUsage();
+		}
+
+		long gcBefore = 0;
+		for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			gcBefore += Math.max(gc.getCollectionTime(), 0);
+		}
+
+		final PrintStream console = System.out;
+		final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(captured, true, "UTF-8"));
+		final long start = System.nanoTime();
+		try
+		{
+			DPCM.run(prop, profile);
+		}
+		finally
+		{
+			System.setOut(console);
+		}
+
+		final Result result = new Result();
+		result.seconds = (System.nanoTime() - start) / 1e9;
+		result.stageTotals = profile.stageTotals();
+		long peak = 0;
+		for (final MemoryPoolMXBean pool : pools)
+		{
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+			{
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+
+		result.peakHeapMB = peak / (1024.0 * 1024.0);
+		for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			result.gcMillis += Math.max(gc.getCollectionTime(), 0);
+		}
+
+		result.gcMillis -= gcBefore;
+
+		for (final String line : new String(captured.toByteArray(), StandardCharsets.UTF_8).split("\n"))
+		{
+			final Matcher matcher = ERROR_LINE.matcher(line.trim());
+			if (matcher.matches())
+			{
+				result.stages.add(matcher.group(1));
+				result.errors.add(Double.parseDouble(matcher.group(2)));
+			}
+		}
+
+		return result;
+	}
+
+	private static void writeResults(final File file, final ArrayList<Result> results) throws Exception
+	{
+		final StringBuilder sb = new StringBuilder("input,config,samples,seconds,samplesPerSecond,peakHeapMB,gcMillis,stageErrors,stageSamplesPerSecond\n");
+		for (final Result result : results)
+		{
+			sb.append(result.input).append(',').append(result.config).append(',').append(result.samples).append(',').append(result.seconds).append(',');
+			sb.append(result.samplesPerSecond()).append(',').append(result.peakHeapMB).append(',').append(result.gcMillis).append(',');
+			for (int s = 0; s < result.stages.size(); s++)
+			{
+				sb.append(s > 0 ? ";" : "").append(result.stages.get(s)).append('=').append(result.errors.get(s));
+			}
+
+			sb.append(',').append(result.stageThroughput(";")).append('\n');
+		}
+
+		Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,47 @@
+package audio;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Resampling 10 seconds of 44.1kHz input to the usual output rates
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResampleBenchmark
+{
+	private static final int SOURCE_RATE = 44100;
+
+	@Param({ "8000", "16000", "32000", "48000" })
+	public int rate;
+
+	@Param({ "false", "true" })
+	public boolean stereo;
+
+	private WaveData data;
+
+	@Benchmark
+	public WaveData resample()
+	{
+		return data.resample(rate);
+	}
+
+	@Setup
+	public void setup()
+	{
+		data = BenchmarkData.signal(SOURCE_RATE, SOURCE_RATE * 10, stereo);
+	}
+}
@@ -0,0 +1,16 @@
+package audio;
+
+import org.openjdk.jmh.annotations.Param;
+
+// The synth kernels over each table strategy, in the default jagged layout
+public class SynthBenchmark extends SynthKernelBenchmark
+{
+	@Param({ "full", "compressed", "integer" })
+	public String table;
+
+	@Override
+	void configure(final SynthRecoder coder)
+	{
+		coder.setTableStrategy(TablePlanner.strategy(table), 1);
+	}
+}
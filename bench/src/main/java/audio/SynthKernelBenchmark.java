@@ -0,0 +1,92 @@
+package audio;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The table lookup error kernel every synth search is built on, for a table the
+// subclass sets up. The frequency range is kept narrow so the largest tables still
+// fit in memory
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class SynthKernelBenchmark
+{
+	static final int RATE = 32000;
+	static final int MIN_FREQ = 200;
+	static final int MAX_FREQ = 263;
+
+	@Param({ "64", "128", "512" })
+	public int blockSize;
+
+	@Param({ "4", "6", "8" })
+	public int channelBits;
+
+	private SynthRecoder coder;
+	private double[] data;
+	private int ampSteps;
+	private int freq;
+	private int step;
+
+	// Sets the table strategy and layout of coder
+	abstract void configure(SynthRecoder coder);
+
+	// One frequency at every amplitude, like the inner loop of the search
+	@Benchmark
+	public double amplitudeSweep()
+	{
+		double best = Double.MAX_VALUE;
+		for (int a = -ampSteps; a <= ampSteps; a++)
+		{
+			best = Math.min(best, coder.calcError(data, blockSize, freq, a, ampSteps));
+		}
+
+		freq = freq == MAX_FREQ ? MIN_FREQ : freq + 1;
+		return best;
+	}
+
+	// The whole search of one block, which is where the transposed and integer
+	// kernels come in
+	@Benchmark
+	public double frequencySweep()
+	{
+		final SynthRecoder.Candidate best = new SynthRecoder.Candidate(MIN_FREQ, 0, Double.MAX_VALUE);
+		coder.searchFrequencies(data, blockSize, MIN_FREQ, MAX_FREQ, ampSteps, null, best);
+		return best.error;
+	}
+
+	@Benchmark
+	public double calcError()
+	{
+		// Walks the table so consecutive calls don't hit the same row
+		freq = freq == MAX_FREQ ? MIN_FREQ : freq + 1;
+		step = step == ampSteps ? -ampSteps : step + 1;
+		return coder.calcError(data, blockSize, freq, step, ampSteps);
+	}
+
+	@Setup
+	public void setup()
+	{
+		coder = new SineRecoder(channelBits, blockSize, MIN_FREQ, MAX_FREQ, new AtomicInteger(0), 1, 1);
+		configure(coder);
+		coder.buildLookup(RATE);
+		ampSteps = coder.ampSteps();
+		data = BenchmarkData.signal(RATE, blockSize * 4, false).channel1();
+		freq = MIN_FREQ;
+		step = -ampSteps;
+	}
+}
@@ -0,0 +1,18 @@
+package audio;
+
+import org.openjdk.jmh.annotations.Param;
+
+// The synth kernels over the full table in each layout, the only table the layout
+// applies to
+public class SynthLayoutBenchmark extends SynthKernelBenchmark
+{
+	@Param({ "jagged", "flat", "transposed" })
+	public String layout;
+
+	@Override
+	void configure(final SynthRecoder coder)
+	{
+		coder.setTableStrategy(TablePlanner.FULL, 1);
+		coder.setTableLayout(SynthRecoder.layout(layout));
+	}
+}
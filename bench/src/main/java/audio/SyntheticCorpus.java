@@ -0,0 +1,179 @@
+package audio;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+// Deterministic test inputs covering the kinds of material the recoders see:
+// steady tones, noise, speech-like bursts and silence. The same name always gives
+// the same samples
+public class SyntheticCorpus
+{
+	static class Input
+	{
+		String type;
+		int rate;
+		double seconds;
+		boolean stereo;
+
+		Input(final String type, final int rate, final double seconds, final boolean stereo)
+		{
+			this.type = type;
+			this.rate = rate;
+			this.seconds = seconds;
+			this.stereo = stereo;
+		}
+
+		String name()
+		{
+			return type + "-" + (stereo ? "stereo" : "mono") + "-" + rate + "-" + seconds + "s";
+		}
+	}
+
+	public static final String TONE = "tone";
+	public static final String NOISE = "noise";
+	public static final String SPEECH = "speech";
+	public static final String SILENCE = "silence";
+
+	private static final long SEED = 20210825L;
+
+	static ArrayList<Input> defaultInputs()
+	{
+		final ArrayList<Input> retval = new ArrayList<>();
+		retval.add(new Input(TONE, 16000, 2.0, false));
+		retval.add(new Input(TONE, 44100, 5.0, true));
+		retval.add(new Input(NOISE, 22050, 2.0, false));
+		retval.add(new Input(NOISE, 16000, 2.0, true));
+		retval.add(new Input(SPEECH, 16000, 5.0, false));
+		retval.add(new Input(SPEECH, 32000, 2.0, true));
+		retval.add(new Input(SILENCE, 8000, 1.0, false));
+		retval.add(new Input(SILENCE, 44100, 2.0, true));
+		return retval;
+	}
+
+	public static WaveData generate(final String type, final int rate, final double seconds, final boolean stereo)
+	{
+		final int samples = (int) (rate * seconds);
+		final Random random = new Random(SEED ^ type.hashCode() ^ rate);
+		final double[] left = new double[samples];
+		final double[] right = new double[samples];
+		if (type.equals(TONE))
+		{
+			tone(left, rate, new double[] { 220.0, 277.2, 329.6 });
+			tone(right, rate, new double[] { 146.8, 440.0, 659.3 });
+		}
+		else if (type.equals(NOISE))
+		{
+			for (int i = 0; i < samples; i++)
+			{
+				left[i] = 0.25 * random.nextGaussian();
+				right[i] = 0.25 * random.nextGaussian();
+			}
+		}
+		else if (type.equals(SPEECH))
+		{
+			speech(left, rate, random);
+
+			// A second voice, a little behind and quieter, like a room
+			final int delay = rate / 50;
+			for (int i = delay; i < samples; i++)
+			{
+				right[i] = 0.7 * left[i - delay];
+			}
+		}
+		else if (!type.equals(SILENCE))
+		{
+			throw new IllegalArgumentException("Unknown corpus type " + type);
+		}
+
+		for (int i = 0; i < samples; i++)
+		{
+			left[i] = Math.max(-1.0, Math.min(1.0, left[i]));
+			right[i] = Math.max(-1.0, Math.min(1.0, right[i]));
+		}
+
+		if (stereo)
+		{
+			return new WaveData(left, right, rate);
+		}
+
+		return new WaveData(left, rate);
+	}
+
+	// Voiced syllables of a harmonic series shaped by three formants, with pauses
+	// between them
+	private static void speech(final double[] target, final int rate, final Random random)
+	{
+		final double[][] formants = { { 730, 1090, 2440 }, { 270, 2290, 3010 }, { 570, 840, 2410 }, { 300, 870, 2240 }, { 530, 1840, 2480 } };
+		int pos = 0;
+		while (pos < target.length)
+		{
+			pos += (int) (rate * (0.05 + 0.25 * random.nextDouble()));
+			final int length = (int) (rate * (0.08 + 0.17 * random.nextDouble()));
+			final double pitch = 100.0 + 100.0 * random.nextDouble();
+			final double[] vowel = formants[random.nextInt(formants.length)];
+			final double loudness = 0.2 + 0.3 * random.nextDouble();
+			for (int i = 0; i < length && pos + i < target.length; i++)
+			{
+				final double t = i * 1.0 / rate;
+				final double envelope = loudness * Math.sin(Math.PI * i / length);
+				final double f0 = pitch * (1.0 - 0.1 * i / length);
+				double val = 0.0;
+				for (int h = 1; h * f0 < Math.min(4000.0, rate / 2.0); h++)
+				{
+					double gain = 0.0;
+					for (final double formant : vowel)
+					{
+						final double distance = (h * f0 - formant) / 150.0;
+						gain += Math.exp(-distance * distance);
+					}
+
+					val += gain / h * Math.sin(2.0 * Math.PI * h * f0 * t);
+				}
+
+				target[pos + i] += envelope * val;
+			}
+
+			pos += length;
+		}
+	}
+
+	// Notes of a chord restarting every half second, with vibrato and decay
+	private static void tone(final double[] target, final int rate, final double[] freqs)
+	{
+		final int note = rate / 2;
+		for (int i = 0; i < target.length; i++)
+		{
+			final double t = i * 1.0 / rate;
+			final double noteTime = (i % note) * 1.0 / rate;
+			final double envelope = Math.exp(-3.0 * noteTime);
+			double val = 0.0;
+			for (int k = 0; k < freqs.length; k++)
+			{
+				final double vibrato = 1.0 + 0.005 * Math.sin(2.0 * Math.PI * 5.0 * t);
+				val += 0.25 / (k + 1) * Math.sin(2.0 * Math.PI * freqs[k] * vibrato * t);
+			}
+
+			target[i] = envelope * val;
+		}
+	}
+
+	// Writes the inputs into dir as 16 bit WAV files, unless they're already there, and
+	// returns the files in order
+	static ArrayList<File> write(final File dir, final ArrayList<Input> inputs) throws Exception
+	{
+		final ArrayList<File> retval = new ArrayList<>();
+		for (final Input input : inputs)
+		{
+			final File file = new File(dir, input.name() + ".wav");
+			if (!file.exists())
+			{
+				new WaveEncoder((byte) 16, file.getPath()).encode(generate(input.type, input.rate, input.seconds, input.stereo));
+			}
+
+			retval.add(file);
+		}
+
+		return retval;
+	}
+}
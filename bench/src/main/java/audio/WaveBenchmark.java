@@ -0,0 +1,88 @@
+package audio;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Reading and writing 10 seconds of 32kHz audio
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WaveBenchmark
+{
+	private static final int RATE = 32000;
+	private static final int SAMPLES = RATE * 10;
+
+	@Param({ "8", "16", "32", "64" })
+	public byte bits;
+
+	@Param({ "false", "true" })
+	public boolean stereo;
+
+	@Param({ "false", "true" })
+	public boolean compressed;
+
+	private WaveData data;
+	private File input;
+	private File output;
+
+	@Benchmark
+	public WaveData decode() throws Exception
+	{
+		return WaveDecoder.decode(input.getPath());
+	}
+
+	@Benchmark
+	public void encode() throws Exception
+	{
+		encoder(output).encode(data);
+	}
+
+	private WaveEncoder encoder(final File file)
+	{
+		final WaveEncoder encoder = new WaveEncoder(bits, file.getPath());
+		if (compressed)
+		{
+			encoder.setCompressed(1);
+		}
+
+		return encoder;
+	}
+
+	@Setup
+	public void setup() throws Exception
+	{
+		// 64 bit output has no compressed mode
+		if (compressed && bits == 64)
+		{
+			compressed = false;
+		}
+
+		data = BenchmarkData.signal(RATE, SAMPLES, stereo);
+		input = File.createTempFile("bench", ".wav");
+		output = File.createTempFile("bench", ".wav");
+		encoder(input).encode(data);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		input.delete();
+		output.delete();
+	}
+}
@@ -0,0 +1,96 @@
+package audio;
+
+// Picks the thread count and screen factor for the synth passes by timing the
+// search on blocks of the input itself. Screening never changes a result, only how
+// many candidates get scored at full rate, so the choice only affects speed. A
+// setting has to be clearly faster to win over fewer threads or a plainer search
+public class Autotuner
+{
+	private static final int CALIBRATION_BLOCKS = 64;
+	private static final int[] SCREEN_FACTORS = { 1, 2, 4, 8 };
+	private static final double MARGIN = 0.05;
+	private static final int RUNS = 2;
+
+	int threads = 1;
+	int screenFactor = 1;
+	double blocksPerSecond;
+	double tableSeconds;
+
+	// Seconds the given number of synth blocks over the given number of passes should
+	// take with the chosen settings
+	public double expectedSeconds(final long numBlocks, final int passes)
+	{
+		return numBlocks / blocksPerSecond + passes * tableSeconds;
+	}
+
+	// coder must be set up like the passes it stands in for. Tries every power of two
+	// threads up to maxThreads, and maxThreads itself
+	public static Autotuner tune(final SynthRecoder coder, final WaveData in, final int maxThreads)
+	{
+		final int synthModRate = coder.synthModRate;
+		final int totalBlocks = in.samples() / synthModRate;
+		final int numBlocks = Math.min(CALIBRATION_BLOCKS, totalBlocks);
+
+		// Blocks spread over the whole input, alternating channels, so quiet and busy
+		// passages both count
+		final double[] source = new double[numBlocks * synthModRate];
+		for (int b = 0; b < numBlocks; b++)
+		{
+			final double[] channel = in.stereo() && b % 2 == 1 ? in.channel2() : in.channel1();
+			System.arraycopy(channel, (int) ((long) b * totalBlocks / numBlocks) * synthModRate, source, b * synthModRate, synthModRate);
+		}
+
+		final Autotuner retval = new Autotuner();
+		final long tableStart = System.nanoTime();
+		coder.setScreenFactor(1);
+		coder.buildLookup(in.rate());
+		retval.tableSeconds = (System.nanoTime() - tableStart) / 1e9;
+		if (numBlocks == 0)
+		{
+			retval.blocksPerSecond = Double.MAX_VALUE;
+			return retval;
+		}
+
+		// Once untimed, so the first setting isn't timed cold
+		coder.timeSearch(source, numBlocks, 1);
+
+		long best = Long.MAX_VALUE;
+		for (final int factor : SCREEN_FACTORS)
+		{
+			coder.setScreenFactor(factor);
+			coder.buildLookup(in.rate());
+			final long nanos = time(coder, source, numBlocks, 1);
+			if (nanos < best * (1.0 - MARGIN))
+			{
+				best = nanos;
+				retval.screenFactor = factor;
+			}
+		}
+
+		coder.setScreenFactor(retval.screenFactor);
+		coder.buildLookup(in.rate());
+		for (int t = 2; t <= maxThreads; t = t * 2 > maxThreads && t < maxThreads ? maxThreads : t * 2)
+		{
+			final long nanos = time(coder, source, numBlocks, t);
+			if (nanos < best * (1.0 - MARGIN))
+			{
+				best = nanos;
+				retval.threads = t;
+			}
+		}
+
+		retval.blocksPerSecond = numBlocks / (best / 1e9);
+		return retval;
+	}
+
+	private static long time(final SynthRecoder coder, final double[] source, final int numBlocks, final int numThreads)
+	{
+		long retval = Long.MAX_VALUE;
+		for (int r = 0; r < RUNS; r++)
+		{
+			retval = Math.min(retval, coder.timeSearch(source, numBlocks, numThreads));
+		}
+
+		return retval;
+	}
+}
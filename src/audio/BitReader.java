@@ -0,0 +1,74 @@
+package audio;
+
+// Reads values written by BitWriter
+public class BitReader
+{
+	private final byte[] data;
+	private long bitPos;
+
+	public BitReader(final byte[] data, final int offset)
+	{
+		this.data = data;
+		bitPos = offset * 8L;
+	}
+
+	public void align()
+	{
+		bitPos = (bitPos + 7) & ~7L;
+	}
+
+	public int position()
+	{
+		return (int) ((bitPos + 7) >>> 3);
+	}
+
+	public long read(final int bits)
+	{
+		long val = 0;
+		int remaining = bits;
+		while (remaining > 0)
+		{
+			// Take as many bits as are left in the current byte
+			final int used = (int) (bitPos & 7);
+			final int take = Math.min(8 - used, remaining);
+			final int cur = ((data[(int) (bitPos >>> 3)] & 0xff) >>> (8 - used - take)) & ((1 << take) - 1);
+			val = (val << take) | cur;
+			remaining -= take;
+			bitPos += take;
+		}
+
+		return val;
+	}
+
+	// Counts 1 bits up to a 0, which is skipped, or up to max 1 bits
+	public int readUnary(final int max)
+	{
+		int count = 0;
+		while (count < max)
+		{
+			final int used = (int) (bitPos & 7);
+			final int avail = 8 - used;
+			// The rest of the current byte, inverted so the first 0 is the first 1
+			final int cur = (~data[(int) (bitPos >>> 3)] << used) & 0xff;
+			if (cur == 0)
+			{
+				final int take = Math.min(avail, max - count);
+				count += take;
+				bitPos += take;
+				continue;
+			}
+
+			final int ones = Integer.numberOfLeadingZeros(cur) - 24;
+			if (count + ones >= max)
+			{
+				bitPos += max - count;
+				return max;
+			}
+
+			bitPos += ones + 1;
+			return count + ones;
+		}
+
+		return count;
+	}
+}
@@ -0,0 +1,56 @@
+package audio;
+
+import java.util.Arrays;
+
+// Packs values of any width up to 64 bits, most significant bit first
+public class BitWriter
+{
+	private byte[] data = new byte[1024];
+	private long bitPos = 0;
+
+	static int bitsFor(final long maxVal)
+	{
+		return 64 - Long.numberOfLeadingZeros(maxVal);
+	}
+
+	public void align()
+	{
+		bitPos = (bitPos + 7) & ~7L;
+	}
+
+	public long bits()
+	{
+		return bitPos;
+	}
+
+	public byte[] toByteArray()
+	{
+		return Arrays.copyOf(data, (int) ((bitPos + 7) >>> 3));
+	}
+
+	public void write(final long val, final int bits)
+	{
+		if (bits == 0)
+		{
+			return;
+		}
+
+		final long needed = (bitPos + bits + 7) >>> 3;
+		if (needed > data.length)
+		{
+			data = Arrays.copyOf(data, (int) Math.max(needed, data.length * 2L));
+		}
+
+		int remaining = bits;
+		while (remaining > 0)
+		{
+			// Fill as many bits as are left in the current byte
+			final int used = (int) (bitPos & 7);
+			final int take = Math.min(8 - used, remaining);
+			final int cur = (int) (val >>> (remaining - take)) & ((1 << take) - 1);
+			data[(int) (bitPos >>> 3)] |= cur << (8 - used - take);
+			remaining -= take;
+			bitPos += take;
+		}
+	}
+}
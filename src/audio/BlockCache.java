@@ -0,0 +1,160 @@
+package audio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Remembers the winning (frequency, step) of synth blocks, keyed by a hash of the
+// block quantized to 16 bits and the settings of the recoder that searched it, so
+// repeated material costs a lookup instead of a sweep
+public class BlockCache
+{
+	private static final int MAGIC = 0x53424331; // SBC1
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final int capacity;
+	private final LinkedHashMap<Long, Long> entries;
+	private long hits = 0;
+	private long misses = 0;
+
+	public BlockCache(final int capacity)
+	{
+		this.capacity = capacity;
+		entries = new LinkedHashMap<Long, Long>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<Long, Long> eldest)
+			{
+				return size() > BlockCache.this.capacity;
+			}
+		};
+	}
+
+	private static long mix(long hash, final long val)
+	{
+		for (int i = 0; i < 8; i++)
+		{
+			hash ^= (val >>> (i * 8)) & 0xff;
+			hash *= FNV_PRIME;
+		}
+
+		return hash;
+	}
+
+	// Hash of the recoder settings, used as the starting point for block keys
+	static long seed(final String shape, final int... params)
+	{
+		long hash = mix(FNV_OFFSET, shape.hashCode());
+		for (final int param : params)
+		{
+			hash = mix(hash, param);
+		}
+
+		return hash;
+	}
+
+	static long key(final long seed, final double[] data, final int start, final int length)
+	{
+		long hash = seed;
+		for (int i = start; i < start + length; i++)
+		{
+			hash = mix(hash, Math.round(data[i] * 32768.0));
+		}
+
+		return hash;
+	}
+
+	public synchronized Long get(final long key)
+	{
+		final Long val = entries.get(key);
+		if (val == null)
+		{
+			++misses;
+		}
+		else
+		{
+			++hits;
+		}
+
+		return val;
+	}
+
+	public synchronized long hits()
+	{
+		return hits;
+	}
+
+	// Does nothing if the file doesn't exist yet
+	public synchronized void load(final String filename) throws Exception
+	{
+		if (!new File(filename).exists())
+		{
+			return;
+		}
+
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+		if (in.readInt() != MAGIC)
+		{
+			in.close();
+			throw new Exception("File is not a block cache");
+		}
+
+		final int size = in.readInt();
+		for (int i = 0; i < size; i++)
+		{
+			final long key = in.readLong();
+			entries.put(key, in.readLong());
+		}
+
+		in.close();
+	}
+
+	public synchronized long misses()
+	{
+		return misses;
+	}
+
+	static long pack(final int freq, final int step)
+	{
+		return ((long) freq << 32) | (step & 0xffffffffL);
+	}
+
+	public synchronized void put(final long key, final long val)
+	{
+		entries.put(key, val);
+	}
+
+	// Least recently used first, so reloading keeps the eviction order
+	public synchronized void save(final String filename) throws Exception
+	{
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+		out.writeInt(MAGIC);
+		out.writeInt(entries.size());
+		for (final Map.Entry<Long, Long> entry : entries.entrySet())
+		{
+			out.writeLong(entry.getKey());
+			out.writeLong(entry.getValue());
+		}
+
+		out.close();
+	}
+
+	static int unpackFreq(final long val)
+	{
+		return (int) (val >> 32);
+	}
+
+	static int unpackStep(final long val)
+	{
+		return (int) val;
+	}
+}
@@ -0,0 +1,28 @@
+package audio;
+
+// The oscillators chosen for one block of one channel. Shape is an index into the
+// shapes of a joint pass and 0 otherwise
+class BlockParams
+{
+	int count;
+	final byte[] shapes;
+	final int[] freqs;
+	final int[] steps;
+
+	public BlockParams(final int maxOscillators)
+	{
+		shapes = new byte[maxOscillators];
+		freqs = new int[maxOscillators];
+		steps = new int[maxOscillators];
+	}
+
+	public BlockParams copy()
+	{
+		final BlockParams retval = new BlockParams(count);
+		retval.count = count;
+		System.arraycopy(shapes, 0, retval.shapes, 0, count);
+		System.arraycopy(freqs, 0, retval.freqs, 0, count);
+		System.arraycopy(steps, 0, retval.steps, 0, count);
+		return retval;
+	}
+}
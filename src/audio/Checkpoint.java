@@ -0,0 +1,178 @@
+package audio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+// Append-only log of the per-block results of every synth pass. Restarting a job
+// with the same properties and input replays logged blocks instead of searching
+// them again
+public class Checkpoint
+{
+	private static final int MAGIC = 0x43504b31; // CPK1
+
+	private final String filename;
+	private final long fingerprint;
+	private final long intervalMillis;
+	private final LinkedHashMap<Long, BlockParams> results = new LinkedHashMap<>();
+	private DataOutputStream out;
+	private long lastFlush;
+
+	public Checkpoint(final String filename, final long fingerprint, final long intervalMillis)
+	{
+		this.filename = filename;
+		this.fingerprint = fingerprint;
+		this.intervalMillis = intervalMillis;
+	}
+
+	// Hash of the job settings and the decoded input
+	static long fingerprint(final Properties prop, final WaveData data)
+	{
+		final ArrayList<String> names = new ArrayList<>(prop.stringPropertyNames());
+		Collections.sort(names);
+		long hash = BlockCache.seed("checkpoint", data.rate(), data.samples(), data.stereo() ? 2 : 1);
+		for (final String name : names)
+		{
+			hash = BlockCache.seed(name + "=" + prop.getProperty(name), (int) hash, (int) (hash >>> 32));
+		}
+
+		hash = BlockCache.key(hash, data.channel1(), 0, data.samples());
+		if (data.stereo())
+		{
+			hash = BlockCache.key(hash, data.channel2(), 0, data.samples());
+		}
+
+		return hash;
+	}
+
+	private static long key(final int pass, final int channel, final int block)
+	{
+		return ((long) pass << 40) | ((long) channel << 32) | block;
+	}
+
+	public synchronized void close() throws Exception
+	{
+		if (out != null)
+		{
+			out.close();
+			out = null;
+		}
+	}
+
+	public synchronized BlockParams get(final int pass, final int channel, final int block)
+	{
+		return results.get(key(pass, channel, block));
+	}
+
+	// Loads whatever a previous run of the same job logged, dropping a record that was
+	// cut short by a crash, then starts a fresh log holding the same records
+	public synchronized void open() throws Exception
+	{
+		final File file = new File(filename);
+		if (file.exists())
+		{
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try
+			{
+				if (in.readInt() == MAGIC && in.readLong() == fingerprint)
+				{
+					while (true)
+					{
+						final int pass = in.readInt();
+						final int channel = in.readByte();
+						final int block = in.readInt();
+						final BlockParams params = new BlockParams(in.readUnsignedByte());
+						params.count = params.freqs.length;
+						for (int i = 0; i < params.count; i++)
+						{
+							params.shapes[i] = in.readByte();
+							params.freqs[i] = in.readInt();
+							params.steps[i] = in.readInt();
+						}
+
+						results.put(key(pass, channel, block), params);
+					}
+				}
+
+				System.out.println("Checkpoint does not match this job, starting over");
+			}
+			catch (final EOFException e)
+			{
+			}
+
+			in.close();
+		}
+
+		if (!results.isEmpty())
+		{
+			System.out.println("Resuming from checkpoint with " + results.size() + " blocks done");
+		}
+
+		final File tmp = new File(filename + ".tmp");
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		out.writeInt(MAGIC);
+		out.writeLong(fingerprint);
+		for (final Map.Entry<Long, BlockParams> entry : results.entrySet())
+		{
+			final long key = entry.getKey();
+			write((int) (key >>> 40), (int) (key >>> 32) & 0xff, (int) key, entry.getValue());
+		}
+
+		out.close();
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		lastFlush = System.currentTimeMillis();
+	}
+
+	public synchronized void record(final int pass, final int channel, final int block, final BlockParams params)
+	{
+		if (out == null)
+		{
+			return;
+		}
+
+		try
+		{
+			write(pass, channel, block, params);
+			final long now = System.currentTimeMillis();
+			if (now - lastFlush >= intervalMillis)
+			{
+				out.flush();
+				lastFlush = now;
+			}
+		}
+		catch (final IOException e)
+		{
+			System.out.println("Writing the checkpoint failed, continuing without it: " + e.getMessage());
+			out = null;
+		}
+	}
+
+	private void write(final int pass, final int channel, final int block, final BlockParams params) throws IOException
+	{
+		out.writeInt(pass);
+		out.writeByte(channel);
+		out.writeInt(block);
+		out.writeByte(params.count);
+		for (int i = 0; i < params.count; i++)
+		{
+			out.writeByte(params.shapes[i]);
+			out.writeInt(params.freqs[i]);
+			out.writeInt(params.steps[i]);
+		}
+	}
+}
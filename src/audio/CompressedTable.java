@@ -0,0 +1,111 @@
+package audio;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+// The full table as 16 bit indexes into levels, the distinct values of the table.
+// Entries are quantized, so there are only a few of them
+class CompressedTable extends SynthTable
+{
+	private final short[][][] codes;
+	private final double[] levels;
+
+	CompressedTable(final SynthRecoder coder, final int minFreq, final int maxFreq, final int rate, final int threads)
+	{
+		super(minFreq, maxFreq, coder.synthModRate);
+		if (!coder.compressible())
+		{
+			throw new IllegalStateException("The table has too many distinct values to compress");
+		}
+
+		final int rows = coder.ampSteps() * 2;
+		final short[][][] codes = new short[maxFreq - minFreq + 1][rows][synthModRate];
+		this.codes = codes;
+
+		// Each frequency is coded on its own thread against a palette of its own, and
+		// its codes are moved over to the shared palette once its last row is in
+		final HashMap<Double, Integer> palette = new HashMap<>();
+		final ArrayList<HashMap<Double, Integer>> own = new ArrayList<>(Collections.nCopies(maxFreq - minFreq + 1, null));
+		minSum = coder.fillRows(minFreq, maxFreq, rate, threads, (z, a, row) ->
+		{
+			if (a == 0)
+			{
+				own.set(z - minFreq, new HashMap<>());
+			}
+
+			final HashMap<Double, Integer> local = own.get(z - minFreq);
+			final short[][] entries = codes[z - minFreq];
+			for (int s = 0; s < synthModRate; s++)
+			{
+				entries[a][s] = (short) code(local, row[s]);
+			}
+
+			if (a == rows - 1)
+			{
+				final int[] shared = new int[local.size()];
+				synchronized (palette)
+				{
+					for (final Map.Entry<Double, Integer> entry : local.entrySet())
+					{
+						shared[entry.getValue()] = code(palette, entry.getKey());
+					}
+				}
+
+				for (final short[] entryRow : entries)
+				{
+					for (int s = 0; s < synthModRate; s++)
+					{
+						entryRow[s] = (short) shared[entryRow[s] & 0xffff];
+					}
+				}
+
+				own.set(z - minFreq, null);
+			}
+		});
+
+		levels = new double[palette.size()];
+		for (final Map.Entry<Double, Integer> entry : palette.entrySet())
+		{
+			levels[entry.getValue()] = entry.getKey();
+		}
+	}
+
+	// Code of value in palette, which gets the next code if it's new
+	private static int code(final HashMap<Double, Integer> palette, final double value)
+	{
+		Integer retval = palette.get(value);
+		if (retval == null)
+		{
+			if (palette.size() == 65536)
+			{
+				throw new IllegalStateException("The table has too many distinct values to compress");
+			}
+
+			retval = palette.size();
+			palette.put(value, retval);
+		}
+
+		return retval;
+	}
+
+	@Override
+	double get(final int f, final int row, final int s)
+	{
+		return levels[codes[f - minFreq][row][s] & 0xffff];
+	}
+
+	@Override
+	double error(final double[] data, final int start, final int f, final int row)
+	{
+		final short[] entries = codes[f - minFreq][row];
+		double error = 0;
+		for (int i = start; i < start + synthModRate; i++)
+		{
+			error += Math.abs(data[i] - levels[entries[i - start] & 0xffff]);
+		}
+
+		return error;
+	}
+}
@@ -2,36 +2,242 @@ package audio;
 
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class DPCM
 {
-	public static void main(final String[] args) throws Exception
+	// Settings that can't work, with the message that says why
+	static class ConfigException extends RuntimeException
 	{
-		if (args.length == 0)
+		private static final long serialVersionUID = 1L;
+
+		ConfigException(final String message)
 		{
-			System.out.println("Usage: DPCM <properties file filename>");
-			System.exit(0);
+			super(message);
 		}
+	}
 
-		final String fn = args[0];
-		final Properties prop = new Properties();
-		final InputStream inputStream = new FileInputStream(fn);
-		prop.load(inputStream);
-		inputStream.close();
+	private static final String[] SHAPES = { "square", "sawtooth", "sine", "triangle" };
+
+	// tuner, when autotune ran, overrides synthScreenFactor
+	private static void configure(final SynthRecoder coder, final Properties prop, final BlockCache cache, final Profile profile, final Autotuner tuner)
+	{
+		// synthTrackWindow is the +/- Hz searched around the previous block's
+		// frequency and its harmonics before a full sweep, 0 disables tracking
+		String stw = prop.getProperty("synthTrackWindow");
+		if (stw == null)
+		{
+			stw = "0";
+		}
+
+		final int trackWindow = Integer.parseInt(stw);
+
+		String sth = prop.getProperty("synthTrackHarmonics");
+		if (sth == null)
+		{
+			sth = "2";
+		}
+
+		final int trackHarmonics = Integer.parseInt(sth);
+
+		// Fraction of the block's absolute sum the local best error must get under
+		// to skip the full sweep
+		String stt = prop.getProperty("synthTrackThreshold");
+		if (stt == null)
+		{
+			stt = "0.5";
+		}
+
+		final double trackThreshold = Double.parseDouble(stt);
+		if (trackWindow < 0 || trackHarmonics <= 0 || trackThreshold < 0.0)
+		{
+			throw new ConfigException("An invalid frequency tracking setting was specified");
+		}
+
+		coder.setTracking(trackWindow, trackHarmonics, trackThreshold);
+
+		// synthCoarseStride is the relative spacing of the coarse frequency grid
+		// (0.02 = 2%), 0 keeps the exhaustive 1 Hz sweep
+		String scs = prop.getProperty("synthCoarseStride");
+		if (scs == null)
+		{
+			scs = "0";
+		}
+
+		final double coarseStride = Double.parseDouble(scs);
+
+		// Number of best coarse cells refined down to 1 Hz
+		String sck = prop.getProperty("synthCoarseKeep");
+		if (sck == null)
+		{
+			sck = "4";
+		}
+
+		final int coarseKeep = Integer.parseInt(sck);
+		if (coarseStride < 0.0 || coarseKeep <= 0)
+		{
+			throw new ConfigException("An invalid coarse search setting was specified");
+		}
 
+		coder.setCoarseSearch(coarseStride, coarseKeep);
+
+		// synthScreenFactor is the decimation used to pre-screen low frequency
+		// candidates, 1 disables the screen
+		String ssf = prop.getProperty("synthScreenFactor");
+		if (ssf == null)
+		{
+			ssf = "1";
+		}
+
+		final int screenFactor = Integer.parseInt(ssf);
+		if (screenFactor <= 0)
+		{
+			throw new ConfigException("The synth screen factor must be positive");
+		}
+
+		coder.setScreenFactor(tuner == null ? screenFactor : tuner.screenFactor);
+		configureTables(coder, prop);
+		coder.setCache(cache);
+		coder.setProfile(profile);
+	}
+
+	// The settings joint channel shapes share with single shape channels
+	private static void configureTables(final SynthRecoder coder, final Properties prop)
+	{
+		// synthTableLayout is how a full or sharded table is laid out in memory: jagged
+		// (an array per row), flat (one array per frequency) or transposed (one array per
+		// frequency, scored a whole frequency at a time without the screen)
+		String stl = prop.getProperty("synthTableLayout");
+		if (stl == null)
+		{
+			stl = "jagged";
+		}
+
+		final int layout = SynthRecoder.layout(stl);
+		if (layout < 0)
+		{
+			throw new ConfigException("synthTableLayout must be jagged, flat or transposed");
+		}
+
+		coder.setTableLayout(layout);
+
+		// synthTableCache is a directory full tables are kept in between runs. They're
+		// mapped from there instead of being built on the heap, and built and written
+		// there by the first run that needs them. A table's checksum is compared once,
+		// after it's written, unless synthTableCacheVerify asks for it on every run
+		final String stc = prop.getProperty("synthTableCache");
+		coder.setTableCache(stc == null ? null : new TableCache(stc, Boolean.parseBoolean(prop.getProperty("synthTableCacheVerify", "false"))));
+		coder.setSilenceThreshold(silenceThreshold(prop));
+	}
+
+	private static SynthRecoder newShape(final String name, final byte channelBits, final int synthModRate, final int synthMinFreq, final int synthMaxFreq, final AtomicInteger blocks, final int numBlocks, final int threads)
+	{
+		if (name.equals("square"))
+		{
+			return new SquareRecoder(channelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, threads);
+		}
+
+		if (name.equals("sawtooth"))
+		{
+			return new SawtoothRecoder(channelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, threads);
+		}
+
+		if (name.equals("sine"))
+		{
+			return new SineRecoder(channelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, threads);
+		}
+
+		return new TriangleRecoder(channelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, threads);
+	}
+
+	// Gives coder the fastest table plan that fits its share of the budget, or throws
+	// with what the smallest plan would need
+	private static TablePlanner.Plan planTables(final SynthRecoder coder, final TablePlanner planner, final int share)
+	{
+		final TablePlanner.Plan plan = planner.plan(coder, share);
+		if (plan == null)
+		{
+			final TablePlanner.Plan smallest = planner.smallest(coder);
+			final String message;
+			if (smallest.strategy == TablePlanner.SHARDED && !TablePlanner.feasible(coder, TablePlanner.SHARDED, share))
+			{
+				message = "Sharded synth tables only work with the exhaustive greedy search, without tracking, coarse search or the block cache, and not for joint channels";
+			}
+			else if (smallest.strategy == TablePlanner.INTEGER && !TablePlanner.feasible(coder, TablePlanner.INTEGER, share))
+			{
+				message = "Integer synth tables only work with the greedy search, up to 15 channel bits or 14 for triangle waves, and not for joint channels";
+			}
+			else if (smallest.strategy == TablePlanner.COMPRESSED && !TablePlanner.feasible(coder, TablePlanner.COMPRESSED, share))
+			{
+				message = "Compressed synth tables only work up to 14 channel bits";
+			}
+			else
+			{
+				message = "The " + coder.getClass().getSimpleName() + " tables need at least " + smallest.bytes / (1024 * 1024) + " MB (" + TablePlanner.NAMES[smallest.strategy] + ") but only " + planner.budget() / share / (1024 * 1024) + " MB are available. Raise -Xmx or synthTableMemory";
+			}
+
+			throw new ConfigException(message);
+		}
+
+		coder.setTableStrategy(plan.strategy, plan.shards);
+		return plan;
+	}
+
+	// synthSilenceThreshold is the mean absolute residual below which a block is left
+	// silent without searching
+	private static double silenceThreshold(final Properties prop)
+	{
+		String sst = prop.getProperty("synthSilenceThreshold");
+		if (sst == null)
+		{
+			sst = "0";
+		}
+
+		final double silenceThreshold = Double.parseDouble(sst);
+		if (silenceThreshold < 0.0)
+		{
+			throw new ConfigException("The synth silence threshold can't be negative");
+		}
+
+		return silenceThreshold;
+	}
+
+	// What the synth passes haven't matched yet, as a "subtract" stage
+	private static WaveData subtract(final Profile profile, final WaveData originalData, final WaveData data) throws Exception
+	{
+		final Profile.Stage stage = profile.begin("subtract");
+		final WaveData retval = originalData.substract(data);
+		profile.end(stage, (long) retval.samples() * (retval.stereo() ? 2 : 1));
+		return retval;
+	}
+
+	// A pass's output added to what the passes before it matched, as an "add" stage
+	private static WaveData add(final Profile profile, final WaveData data, final WaveData remainder) throws Exception
+	{
+		final Profile.Stage stage = profile.begin("add");
+		final WaveData retval = data.add(remainder);
+		profile.end(stage, (long) retval.samples() * (retval.stereo() ? 2 : 1));
+		return retval;
+	}
+
+	// The input file, converted to the requested channels and output sample rate,
+	// with decoding and resampling as stages of profile
+	static WaveData readInput(final Properties prop, final Profile profile) throws Exception
+	{
 		// Properties file is key-value pairs, one per line
 		// inputFile=myfile.wav
 		// stereo=true
 		final String inputFile = prop.getProperty("inputFile");
 		if (inputFile == null)
 		{
-			System.out.println("No input file was provided");
-			System.exit(0);
+			throw new ConfigException("No input file was provided");
 		}
 
+		Profile.Stage stage = profile.begin("decode");
 		WaveData data = WaveDecoder.decode(inputFile);
+		profile.end(stage, data.samples());
 		if (data.stereo())
 		{
 			System.out.println("Input data is in stereo");
@@ -64,20 +270,72 @@ public class DPCM
 		final String sr = prop.getProperty("sampleRate");
 		if (sr == null)
 		{
-			System.out.println("No output sample rate was specified");
-			System.exit(0);
+			throw new ConfigException("No output sample rate was specified");
 		}
 
 		final int rate = Integer.parseInt(sr);
 		if (rate <= 0)
 		{
-			System.out.println("An invalid output sample rate was specified");
+			throw new ConfigException("An invalid output sample rate was specified");
+		}
+
+		stage = profile.begin("resample");
+		final WaveData retval = data.resample(rate);
+		profile.end(stage, retval.samples());
+		return retval;
+	}
+
+	static Properties readProperties(final String fn) throws Exception
+	{
+		final Properties prop = new Properties();
+		final InputStream inputStream = new FileInputStream(fn);
+		prop.load(inputStream);
+		inputStream.close();
+		return prop;
+	}
+
+	public static void main(final String[] args) throws Exception
+	{
+		if (args.length == 0)
+		{
+			System.out.println("Usage: DPCM <properties file filename>");
+			System.exit(0);
+		}
+
+		final Properties prop = readProperties(args[0]);
+
+		// profileFile gets a JSON summary of the time spent in each stage and synth pass.
+		// The same timings are always available as flight recorder events
+		try
+		{
+			run(prop, new Profile(prop.getProperty("profileFile")));
+		}
+		catch (final ConfigException e)
+		{
+			System.out.println(e.getMessage());
 			System.exit(0);
 		}
+	}
 
-		data = data.resample(rate);
+	// The whole pipeline for the settings in prop, with its stages timed by profile.
+	// Settings that can't work throw a ConfigException instead of exiting, so a
+	// harness can go on to its next run
+	public static void run(final Properties prop, final Profile profile) throws Exception
+	{
+		WaveData data = readInput(prop, profile);
+		final int rate = data.rate();
+		Profile.Stage stage = profile.begin("copy");
 		final WaveData originalData = data.resample(rate);
 		data.clear();
+		profile.end(stage, originalData.samples());
+
+		String th = prop.getProperty("threads");
+		if (th == null)
+		{
+			th = "1";
+		}
+
+		final int threads = Integer.parseInt(th);
 
 		String pcmChan = prop.getProperty("pcmChannels");
 		if (pcmChan == null)
@@ -94,44 +352,68 @@ public class DPCM
 			final String ob = prop.getProperty("outputBits");
 			if (db == null || ob == null)
 			{
-				System.out.println("Both outputBits and deltaBits must be specified");
-				System.exit(0);
+				throw new ConfigException("Both outputBits and deltaBits must be specified");
 			}
 
 			final byte deltaBits = Byte.parseByte(db);
 			final byte outputBits = Byte.parseByte(ob);
 			if (deltaBits <= 0 || outputBits <= 0)
 			{
-				System.out.println("Both outputBits and deltaBits must be positive");
-				System.exit(0);
+				throw new ConfigException("Both outputBits and deltaBits must be positive");
 			}
 
-			DPCMRecoder coder = new DPCMRecoder(deltaBits, outputBits);
-			WaveData remainder = originalData.substract(data);
-			remainder = coder.recode(remainder);
-			data = data.add(remainder);
+			// dpcmKeyframeInterval restarts the predictor every so many samples, which
+			// lets the passes use all the threads and a decoder seek
+			String dki = prop.getProperty("dpcmKeyframeInterval");
+			if (dki == null)
+			{
+				dki = "0";
+			}
 
-			System.out.println("Average absolute error in DPCM encoding was: " + coder.averageError());
+			final int keyframeInterval = Integer.parseInt(dki);
+			if (keyframeInterval < 0)
+			{
+				throw new ConfigException("dpcmKeyframeInterval can't be negative");
+			}
 
-			for (int i = 1; i < pcmChannels; i++)
+			// dpcmFile stores the delta codes of the DPCM passes, packed to about deltaBits
+			// per sample
+			final String dpcmFile = prop.getProperty("dpcmFile");
+			DPCMStream stream = null;
+			if (dpcmFile != null)
+			{
+				stream = new DPCMStream(rate, originalData.samples(), originalData.stereo(), deltaBits, outputBits, keyframeInterval);
+			}
+
+			// All the passes run together, each on what the ones before it missed
+			stage = profile.begin("dpcm");
+			final long dpcmStart = System.nanoTime();
+			final DPCMCascade cascade = new DPCMCascade(deltaBits, outputBits, pcmChannels);
+			cascade.setKeepCodes(stream != null);
+			cascade.setKeyframes(keyframeInterval, threads);
+			data = cascade.recode(originalData, data);
+			for (final DPCMRecoder coder : cascade.stages())
 			{
-				remainder = originalData.substract(data);
-				coder = new DPCMRecoder(deltaBits, outputBits);
-				remainder = coder.recode(remainder);
 				System.out.println("Average absolute error in DPCM encoding was: " + coder.averageError());
+				if (stream != null)
+				{
+					stream.addPass(coder);
+				}
+			}
 
-				data = data.add(remainder);
+			final double seconds = (System.nanoTime() - dpcmStart) / 1e9;
+			System.out.println("DPCM passes took " + seconds + "s, " + pcmChannels * (long) originalData.samples() / seconds + " samples per second");
+
+			if (stream != null)
+			{
+				final long size = stream.write(dpcmFile);
+				final long codes = (long) pcmChannels * originalData.samples() * (originalData.stereo() ? 2 : 1);
+				System.out.println("Wrote " + size + " bytes of DPCM codes, " + size * 8.0 / codes + " bits per code");
 			}
-		}
 
-		String th = prop.getProperty("threads");
-		if (th == null)
-		{
-			th = "1";
+			profile.end(stage, pcmChannels * (long) originalData.samples());
 		}
 
-		final int threads = Integer.parseInt(th);
-
 		String smr = prop.getProperty("synthBlockSize"); // In samples at output sample rate
 		if (smr == null)
 		{
@@ -188,15 +470,210 @@ public class DPCM
 
 		final int triangleChannels = Integer.parseInt(triangleChan);
 
+		// Joint channels pick the best of every shape that has its channel bits set,
+		// block by block
+		String jointChan = prop.getProperty("jointChannels");
+		if (jointChan == null)
+		{
+			jointChan = "0";
+		}
+
+		final int jointChannels = Integer.parseInt(jointChan);
+
+		// The joint sweep scores every candidate of every shape at full rate, so the
+		// search shortcuts don't apply to it
+		final String jtw = prop.getProperty("synthTrackWindow");
+		final String jcs = prop.getProperty("synthCoarseStride");
+		final String jsf = prop.getProperty("synthScreenFactor");
+		final boolean tracking = jtw != null && Integer.parseInt(jtw) > 0;
+		final boolean coarse = jcs != null && Double.parseDouble(jcs) > 0.0;
+		final boolean screen = jsf != null && Integer.parseInt(jsf) > 1;
+		if (jointChannels > 0 && (tracking || coarse || screen))
+		{
+			throw new ConfigException("Frequency tracking, the coarse search and the screen don't work with joint channels");
+		}
+
+		// synthSolver=pursuit fits all of a shape's channels per block with matching
+		// pursuit in one pass, instead of one greedy pass per channel
+		String solver = prop.getProperty("synthSolver");
+		if (solver == null)
+		{
+			solver = "greedy";
+		}
+
+		if (!solver.equals("greedy") && !solver.equals("pursuit"))
+		{
+			throw new ConfigException("synthSolver must be greedy or pursuit");
+		}
+
+		final boolean pursuit = solver.equals("pursuit");
+
+		// synthCacheSize is the number of block results to remember, 0 disables the
+		// cache. synthCacheFile keeps them between runs
+		String scs = prop.getProperty("synthCacheSize");
+		if (scs == null)
+		{
+			scs = "0";
+		}
+
+		final int cacheSize = Integer.parseInt(scs);
+		if (cacheSize < 0)
+		{
+			throw new ConfigException("The synth cache size can't be negative");
+		}
+
+		final String cacheFile = prop.getProperty("synthCacheFile");
+		BlockCache cache = null;
+		if (cacheSize > 0)
+		{
+			cache = new BlockCache(cacheSize);
+			if (cacheFile != null)
+			{
+				cache.load(cacheFile);
+			}
+		}
+
+		// checkpointFile logs every synth block as it's done, so a job restarted with the
+		// same properties and input picks up where it stopped
+		final String checkpointFile = prop.getProperty("checkpointFile");
+		Checkpoint checkpoint = null;
+		if (checkpointFile != null)
+		{
+			String ci = prop.getProperty("checkpointInterval"); // In seconds
+			if (ci == null)
+			{
+				ci = "30";
+			}
+
+			final long checkpointInterval = Long.parseLong(ci);
+			if (checkpointInterval < 0)
+			{
+				throw new ConfigException("The checkpoint interval can't be negative");
+			}
+
+			checkpoint = new Checkpoint(checkpointFile, Checkpoint.fingerprint(prop, originalData), checkpointInterval * 1000);
+			checkpoint.open();
+		}
+
+		// parameterFile stores the oscillator parameters of every synth pass, alongside
+		// or instead of the rendered outputFile
+		final String parameterFile = prop.getProperty("parameterFile");
+		ParameterStream parameters = null;
+		if (parameterFile != null)
+		{
+			parameters = new ParameterStream(rate, originalData.samples(), originalData.stereo(), synthModRate, synthMinFreq, synthMaxFreq);
+			if (pcmChannels > 0)
+			{
+				System.out.println("The parameter file doesn't include the DPCM passes");
+			}
+		}
+
+		// Synth passes are numbered in the order they run, for the checkpoint
+		int pass = 0;
+
 		final AtomicInteger blocks = new AtomicInteger(0);
 		int numBlocks = data.samples() / synthModRate;
-		final int numChannels = squareChannels + sawtoothChannels + sineChannels + triangleChannels;
+		final int numChannels = squareChannels + sawtoothChannels + sineChannels + triangleChannels + jointChannels;
 		numBlocks *= numChannels;
 		if (data.stereo())
 		{
 			numBlocks *= 2;
 		}
 
+		// synthTableMemory is the heap the synth tables may take, in megabytes. By default
+		// it's the maximum heap less room for eight copies of the audio. Each pass holds
+		// its table the fastest way that fits, or the way synthTable (compressed, full,
+		// integer, sharded or onthefly) says
+		final long audioBytes = (long) originalData.samples() * (originalData.stereo() ? 2 : 1) * 8;
+		long tableBudget = Runtime.getRuntime().maxMemory() - 8 * audioBytes;
+		final String stm = prop.getProperty("synthTableMemory");
+		if (stm != null)
+		{
+			tableBudget = Long.parseLong(stm) * 1024 * 1024;
+		}
+
+		final String st = prop.getProperty("synthTable");
+		final int tableStrategy = st == null ? -1 : TablePlanner.strategy(st);
+		if (st != null && tableStrategy < 0)
+		{
+			throw new ConfigException("synthTable must be compressed, full, integer, sharded or onthefly");
+		}
+
+		final TablePlanner planner = new TablePlanner(tableBudget, tableStrategy, rate, (long) (data.samples() / synthModRate) * (data.stereo() ? 2 : 1));
+
+		// autotune=true times the search on the input before the synth passes, and picks
+		// their thread count and synthScreenFactor. threads still applies to the DPCM
+		// passes. The first shape with channel bits that the passes use stands in for
+		// all of them. It times the greedy search of a single shape, so it's skipped for
+		// joint channels and pursuit, which search another way
+		final int[] shapeChannels = { squareChannels, sawtoothChannels, sineChannels, triangleChannels };
+		Autotuner tuner = null;
+		if ("true".equals(prop.getProperty("autotune")) && numChannels > 0 && (jointChannels > 0 || pursuit))
+		{
+			System.out.println("Autotune only times the greedy search of single shapes, so it's skipped with joint channels or pursuit");
+		}
+		else if ("true".equals(prop.getProperty("autotune")) && numChannels > 0)
+		{
+			for (int s = 0; s < SHAPES.length && tuner == null; s++)
+			{
+				final String scb = prop.getProperty(SHAPES[s] + "ChannelBits");
+				if (scb == null || Byte.parseByte(scb) <= 0 || shapeChannels[s] == 0)
+				{
+					continue;
+				}
+
+				stage = profile.begin("autotune");
+				final SynthRecoder calibration = newShape(SHAPES[s], Byte.parseByte(scb), synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, 1);
+				configure(calibration, prop, null, null, null);
+				planTables(calibration, planner, 1);
+
+				tuner = Autotuner.tune(calibration, originalData, Runtime.getRuntime().availableProcessors());
+				profile.end(stage, originalData.samples());
+
+				final long passBlocks = (long) (originalData.samples() / synthModRate) * (originalData.stereo() ? 2 : 1);
+				System.out.println("Autotune picked " + tuner.threads + " threads and a synth screen factor of " + tuner.screenFactor + ", " + tuner.blocksPerSecond + " blocks per second");
+				System.out.println("Synth passes should take about " + tuner.expectedSeconds(passBlocks * numChannels, numChannels) + "s");
+			}
+		}
+
+		final int synthThreads = tuner == null ? threads : tuner.threads;
+
+		// Every pass is planned now, so a job that can't fit stops before it starts
+		int jointShapes = 0;
+		for (final String name : SHAPES)
+		{
+			jointShapes += prop.getProperty(name + "ChannelBits") == null ? 0 : 1;
+		}
+
+		for (int s = 0; s < SHAPES.length; s++)
+		{
+			final String scb = prop.getProperty(SHAPES[s] + "ChannelBits");
+			if (scb == null || Byte.parseByte(scb) <= 0 || shapeChannels[s] == 0 && jointChannels == 0)
+			{
+				continue;
+			}
+
+			if (shapeChannels[s] > 0)
+			{
+				final SynthRecoder shape = newShape(SHAPES[s], Byte.parseByte(scb), synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, synthThreads);
+				configure(shape, prop, cache, null, tuner);
+				if (pursuit)
+				{
+					shape.setPursuit(shapeChannels[s]);
+				}
+
+				System.out.println("Synth " + SHAPES[s] + " tables: " + planTables(shape, planner, 1));
+			}
+
+			if (jointChannels > 0)
+			{
+				final SynthRecoder shape = newShape(SHAPES[s], Byte.parseByte(scb), synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, synthThreads);
+				configureTables(shape, prop);
+				System.out.println("Synth joint " + SHAPES[s] + " tables: " + planTables(shape, planner, jointShapes));
+			}
+		}
+
+		stage = profile.begin("synth");
 		if (squareChannels > 0)
 		{
 			// squareChannelBits is a needed property at this point
@@ -205,32 +682,51 @@ public class DPCM
 			final String scb = prop.getProperty("squareChannelBits");
 			if (scb == null)
 			{
-				System.out.println("Square channel bits must be specified");
-				System.exit(0);
+				throw new ConfigException("Square channel bits must be specified");
 			}
 
 			final byte squareChannelBits = Byte.parseByte(scb);
 			if (squareChannelBits <= 0)
 			{
-				System.out.println("Square channel bits must be positive");
-				System.exit(0);
+				throw new ConfigException("Square channel bits must be positive");
+			}
+
+			SquareRecoder coder = new SquareRecoder(squareChannelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, synthThreads);
+			configure(coder, prop, cache, profile, tuner);
+			coder.setCheckpoint(checkpoint, pass++);
+			if (pursuit)
+			{
+				coder.setPursuit(squareChannels);
 			}
 
-			SquareRecoder coder = new SquareRecoder(squareChannelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, threads);
-			WaveData remainder = originalData.substract(data);
+			planTables(coder, planner, 1);
+			WaveData remainder = subtract(profile, originalData, data);
 			remainder = coder.recode(remainder);
-			data = data.add(remainder);
+			if (parameters != null)
+			{
+				parameters.addPass(coder);
+			}
+
+			data = add(profile, data, remainder);
 
 			System.out.println("Average absolute error in square channel encoding was: " + coder.averageError());
 
-			for (int i = 1; i < squareChannels; i++)
+			for (int i = 1; !pursuit && i < squareChannels; i++)
 			{
-				remainder = originalData.substract(data);
-				coder = new SquareRecoder(squareChannelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, threads);
+				remainder = subtract(profile, originalData, data);
+				coder = new SquareRecoder(squareChannelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, synthThreads);
+				configure(coder, prop, cache, profile, tuner);
+				coder.setCheckpoint(checkpoint, pass++);
+				planTables(coder, planner, 1);
 				remainder = coder.recode(remainder);
+				if (parameters != null)
+				{
+					parameters.addPass(coder);
+				}
+
 				System.out.println("Average absolute error in square channel encoding was: " + coder.averageError());
 
-				data = data.add(remainder);
+				data = add(profile, data, remainder);
 			}
 		}
 
@@ -241,32 +737,51 @@ public class DPCM
 			final String scb = prop.getProperty("sawtoothChannelBits");
 			if (scb == null)
 			{
-				System.out.println("Sawthooth channel bits must be specified");
-				System.exit(0);
+				throw new ConfigException("Sawthooth channel bits must be specified");
 			}
 
 			final byte sawtoothChannelBits = Byte.parseByte(scb);
 			if (sawtoothChannelBits <= 0)
 			{
-				System.out.println("Sawtooth channel bits must be positive");
-				System.exit(0);
+				throw new ConfigException("Sawtooth channel bits must be positive");
 			}
 
-			SawtoothRecoder coder = new SawtoothRecoder(sawtoothChannelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, threads);
-			WaveData remainder = originalData.substract(data);
+			SawtoothRecoder coder = new SawtoothRecoder(sawtoothChannelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, synthThreads);
+			configure(coder, prop, cache, profile, tuner);
+			coder.setCheckpoint(checkpoint, pass++);
+			if (pursuit)
+			{
+				coder.setPursuit(sawtoothChannels);
+			}
+
+			planTables(coder, planner, 1);
+			WaveData remainder = subtract(profile, originalData, data);
 			remainder = coder.recode(remainder);
-			data = data.add(remainder);
+			if (parameters != null)
+			{
+				parameters.addPass(coder);
+			}
+
+			data = add(profile, data, remainder);
 
 			System.out.println("Average absolute error in sawtooth channel encoding was: " + coder.averageError());
 
-			for (int i = 1; i < sawtoothChannels; i++)
+			for (int i = 1; !pursuit && i < sawtoothChannels; i++)
 			{
-				remainder = originalData.substract(data);
-				coder = new SawtoothRecoder(sawtoothChannelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, threads);
+				remainder = subtract(profile, originalData, data);
+				coder = new SawtoothRecoder(sawtoothChannelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, synthThreads);
+				configure(coder, prop, cache, profile, tuner);
+				coder.setCheckpoint(checkpoint, pass++);
+				planTables(coder, planner, 1);
 				remainder = coder.recode(remainder);
+				if (parameters != null)
+				{
+					parameters.addPass(coder);
+				}
+
 				System.out.println("Average absolute error in sawtooth channel encoding was: " + coder.averageError());
 
-				data = data.add(remainder);
+				data = add(profile, data, remainder);
 			}
 		}
 
@@ -277,32 +792,51 @@ public class DPCM
 			final String scb = prop.getProperty("sineChannelBits");
 			if (scb == null)
 			{
-				System.out.println("Sine channel bits must be specified");
-				System.exit(0);
+				throw new ConfigException("Sine channel bits must be specified");
 			}
 
 			final byte sineChannelBits = Byte.parseByte(scb);
 			if (sineChannelBits <= 0)
 			{
-				System.out.println("Sine channel bits must be positive");
-				System.exit(0);
+				throw new ConfigException("Sine channel bits must be positive");
+			}
+
+			SineRecoder coder = new SineRecoder(sineChannelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, synthThreads);
+			configure(coder, prop, cache, profile, tuner);
+			coder.setCheckpoint(checkpoint, pass++);
+			if (pursuit)
+			{
+				coder.setPursuit(sineChannels);
 			}
 
-			SineRecoder coder = new SineRecoder(sineChannelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, threads);
-			WaveData remainder = originalData.substract(data);
+			planTables(coder, planner, 1);
+			WaveData remainder = subtract(profile, originalData, data);
 			remainder = coder.recode(remainder);
-			data = data.add(remainder);
+			if (parameters != null)
+			{
+				parameters.addPass(coder);
+			}
+
+			data = add(profile, data, remainder);
 
 			System.out.println("Average absolute error in sine channel encoding was: " + coder.averageError());
 
-			for (int i = 1; i < sineChannels; i++)
+			for (int i = 1; !pursuit && i < sineChannels; i++)
 			{
-				remainder = originalData.substract(data);
-				coder = new SineRecoder(sineChannelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, threads);
+				remainder = subtract(profile, originalData, data);
+				coder = new SineRecoder(sineChannelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, synthThreads);
+				configure(coder, prop, cache, profile, tuner);
+				coder.setCheckpoint(checkpoint, pass++);
+				planTables(coder, planner, 1);
 				remainder = coder.recode(remainder);
+				if (parameters != null)
+				{
+					parameters.addPass(coder);
+				}
+
 				System.out.println("Average absolute error in sine channel encoding was: " + coder.averageError());
 
-				data = data.add(remainder);
+				data = add(profile, data, remainder);
 			}
 		}
 
@@ -313,53 +847,158 @@ public class DPCM
 			final String scb = prop.getProperty("triangleChannelBits");
 			if (scb == null)
 			{
-				System.out.println("Triangle channel bits must be specified");
-				System.exit(0);
+				throw new ConfigException("Triangle channel bits must be specified");
 			}
 
 			final byte triangleChannelBits = Byte.parseByte(scb);
 			if (triangleChannelBits <= 0)
 			{
-				System.out.println("Triangle channel bits must be positive");
-				System.exit(0);
+				throw new ConfigException("Triangle channel bits must be positive");
 			}
 
-			TriangleRecoder coder = new TriangleRecoder(triangleChannelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, threads);
-			WaveData remainder = originalData.substract(data);
+			TriangleRecoder coder = new TriangleRecoder(triangleChannelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, synthThreads);
+			configure(coder, prop, cache, profile, tuner);
+			coder.setCheckpoint(checkpoint, pass++);
+			if (pursuit)
+			{
+				coder.setPursuit(triangleChannels);
+			}
+
+			planTables(coder, planner, 1);
+			WaveData remainder = subtract(profile, originalData, data);
 			remainder = coder.recode(remainder);
-			data = data.add(remainder);
+			if (parameters != null)
+			{
+				parameters.addPass(coder);
+			}
+
+			data = add(profile, data, remainder);
 
 			System.out.println("Average absolute error in triangle channel encoding was: " + coder.averageError());
 
-			for (int i = 1; i < triangleChannels; i++)
+			for (int i = 1; !pursuit && i < triangleChannels; i++)
 			{
-				remainder = originalData.substract(data);
-				coder = new TriangleRecoder(triangleChannelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, threads);
+				remainder = subtract(profile, originalData, data);
+				coder = new TriangleRecoder(triangleChannelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, synthThreads);
+				configure(coder, prop, cache, profile, tuner);
+				coder.setCheckpoint(checkpoint, pass++);
+				planTables(coder, planner, 1);
 				remainder = coder.recode(remainder);
+				if (parameters != null)
+				{
+					parameters.addPass(coder);
+				}
+
 				System.out.println("Average absolute error in triangle channel encoding was: " + coder.averageError());
 
-				data = data.add(remainder);
+				data = add(profile, data, remainder);
 			}
 		}
 
+		if (jointChannels > 0)
+		{
+			final ArrayList<SynthRecoder> shapes = new ArrayList<>();
+			for (final String name : SHAPES)
+			{
+				final String scb = prop.getProperty(name + "ChannelBits");
+				if (scb == null)
+				{
+					continue;
+				}
+
+				final byte channelBits = Byte.parseByte(scb);
+				if (channelBits <= 0)
+				{
+					throw new ConfigException("Joint channel bits must be positive");
+				}
+
+				final SynthRecoder shape = newShape(name, channelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, synthThreads);
+				configureTables(shape, prop);
+				shapes.add(shape);
+			}
+
+			if (shapes.isEmpty())
+			{
+				throw new ConfigException("Joint channels need the channel bits of at least one shape");
+			}
+
+			final SynthRecoder[] shapeArray = shapes.toArray(new SynthRecoder[0]);
+			for (final SynthRecoder shape : shapeArray)
+			{
+				planTables(shape, planner, shapeArray.length);
+			}
+
+			for (int i = 0; i < jointChannels; i++)
+			{
+				final JointRecoder coder = new JointRecoder(shapeArray, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, synthThreads);
+				coder.setCheckpoint(checkpoint, pass++);
+				coder.setProfile(profile);
+				WaveData remainder = subtract(profile, originalData, data);
+				remainder = coder.recode(remainder);
+				if (parameters != null)
+				{
+					parameters.addPass(coder);
+				}
+
+				System.out.println("Average absolute error in joint channel encoding was: " + coder.averageError());
+
+				data = add(profile, data, remainder);
+			}
+		}
+
+		profile.end(stage, (long) numChannels * originalData.samples());
+		if (checkpoint != null)
+		{
+			checkpoint.close();
+		}
+
+		if (cache != null)
+		{
+			System.out.println("Synth block cache hits: " + cache.hits() + ", misses: " + cache.misses());
+			if (cacheFile != null)
+			{
+				cache.save(cacheFile);
+			}
+		}
+
+		if (parameters != null)
+		{
+			parameters.write(parameterFile);
+		}
+
 		// Lastly we need an outputFile and resultBits (outputBits is DPCM resolution,
 		// not final wav resolution)
 		final String outFn = prop.getProperty("outputFile");
 		if (outFn == null)
 		{
-			System.out.println("An output file was not specified");
-			System.exit(0);
+			if (parameters != null)
+			{
+				profile.write();
+				return;
+			}
+
+			throw new ConfigException("An output file was not specified");
 		}
 
 		final String rb = prop.getProperty("resultBits");
 		if (rb == null)
 		{
-			System.out.println("The resultBits property was not specified");
-			System.exit(0);
+			throw new ConfigException("The resultBits property was not specified");
 		}
 
 		final byte resultBits = Byte.parseByte(rb);
 		final WaveEncoder encoder = new WaveEncoder(resultBits, outFn);
+
+		// compressOutput=true writes the output losslessly compressed, which WaveDecoder
+		// also reads. resultBits must then be 8, 16 or 32
+		if ("true".equals(prop.getProperty("compressOutput")))
+		{
+			encoder.setCompressed(threads);
+		}
+
+		stage = profile.begin("write");
 		encoder.encode(data);
+		profile.end(stage, originalData.samples());
+		profile.write();
 	}
 }
@@ -0,0 +1,260 @@
+package audio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Runs several DPCM passes at once. Each pass recodes what the passes before it
+// missed, and as that only depends on the same sample of the earlier passes, every
+// pass is advanced a sample at a time in one loop instead of one loop over the
+// whole input per pass. The result is identical to running DPCMRecoder on
+// original - data once per pass. Each pass's codes and error end up in a
+// DPCMRecoder, as if it had been run on its own
+public class DPCMCascade
+{
+	class SegmentThread implements Runnable
+	{
+		WaveData original;
+		WaveData base;
+		double[][] out;
+		int beginJob;
+		int endJob;
+
+		public SegmentThread(final WaveData original, final WaveData base, final double[][] out, final int beginJob, final int endJob)
+		{
+			this.original = original;
+			this.base = base;
+			this.out = out;
+			this.beginJob = beginJob;
+			this.endJob = endJob;
+		}
+
+		@Override
+		public void run()
+		{
+			for (int j = beginJob; j < endJob; j++)
+			{
+				final int c = j / numSegments;
+				final double[] source = c == 0 ? original.channel1() : original.channel2();
+				final double[] start = c == 0 ? base.channel1() : base.channel2();
+				recodeSegment(source, start, out[c], c, j, j % numSegments, new int[stages.length]);
+			}
+		}
+	}
+
+	private final byte deltaBits;
+	private final byte outputBits;
+	private final DPCMRecoder[] stages;
+	private boolean keepCodes = false;
+	private int keyframeInterval = 0;
+	private int numThreads = 1;
+	private int numSegments;
+	private double[][] errors;
+
+	public DPCMCascade(final byte deltaBits, final byte outputBits, final int numStages)
+	{
+		this.deltaBits = deltaBits;
+		this.outputBits = outputBits;
+		stages = new DPCMRecoder[numStages];
+		for (int k = 0; k < numStages; k++)
+		{
+			stages[k] = new DPCMRecoder(deltaBits, outputBits);
+		}
+	}
+
+	// Returns data with every pass added, recoding original - data in the first pass
+	public WaveData recode(final WaveData original, final WaveData data)
+	{
+		final int numSamples = Math.min(original.samples(), data.samples());
+		final int channels = original.stereo() ? 2 : 1;
+		final WaveData base = original.stereo() && !data.stereo() ? data.convertToStereo() : data;
+		for (final DPCMRecoder stage : stages)
+		{
+			if (keepCodes)
+			{
+				stage.codes = new int[channels][numSamples];
+				stage.initialScales = new int[channels];
+				Arrays.fill(stage.initialScales, 1);
+			}
+
+			stage.keyframeInterval = keyframeInterval;
+		}
+
+		final double[][] out = new double[channels][numSamples];
+		if (keyframeInterval == 0)
+		{
+			// The ADPCM scale carries on from one channel to the next, so this stays
+			// sequential
+			numSegments = 1;
+			errors = new double[stages.length][1];
+			final int[] scales = new int[stages.length];
+			Arrays.fill(scales, 1);
+			recodeSegment(original.channel1(), base.channel1(), out[0], 0, 0, 0, scales);
+			if (channels == 2)
+			{
+				if (keepCodes)
+				{
+					for (int k = 0; k < stages.length; k++)
+					{
+						stages[k].initialScales[1] = scales[k];
+					}
+				}
+
+				recodeSegment(original.channel2(), base.channel2(), out[1], 1, 0, 0, scales);
+			}
+		}
+		else
+		{
+			numSegments = (numSamples + keyframeInterval - 1) / keyframeInterval;
+			errors = new double[stages.length][channels * numSegments];
+			for (final DPCMRecoder stage : stages)
+			{
+				stage.keys = new long[channels][numSegments];
+			}
+
+			final ArrayList<Thread> threads = new ArrayList<>();
+			final int numJobs = channels * numSegments;
+			final int perThread = Math.max((numJobs + numThreads - 1) / numThreads, 1);
+			for (int j = 0; j < numJobs; j += perThread)
+			{
+				final Thread thread = new Thread(new SegmentThread(original, base, out, j, Math.min(j + perThread, numJobs)));
+				thread.start();
+				threads.add(thread);
+			}
+
+			for (final Thread thread : threads)
+			{
+				while (true)
+				{
+					try
+					{
+						thread.join();
+						break;
+					}
+					catch (final Exception e)
+					{
+					}
+				}
+			}
+		}
+
+		// Summed in segment order so the totals don't depend on the thread count
+		for (int k = 0; k < stages.length; k++)
+		{
+			for (final double error : errors[k])
+			{
+				stages[k].sumAbsoluteError += error;
+			}
+
+			stages[k].count += (long) channels * numSamples;
+		}
+
+		if (channels == 2)
+		{
+			return new WaveData(out[0], out[1], original.rate());
+		}
+
+		return new WaveData(out[0], original.rate());
+	}
+
+	// One keyframe interval of one channel, or the whole channel without keyframes,
+	// through every pass. scales holds each pass's ADPCM scale going in and coming out
+	private void recodeSegment(final double[] source, final double[] start, final double[] target, final int c, final int job, final int segment, final int[] scales)
+	{
+		final int numStages = stages.length;
+		final int begin = keyframeInterval == 0 ? 0 : segment * keyframeInterval;
+		final int end = keyframeInterval == 0 ? target.length : Math.min(begin + keyframeInterval, target.length);
+		final double delta = 2.0 / (Math.pow(2.0, outputBits) - 1);
+		final int maxDeltas = deltaBits == 2 ? 1 : (int) (Math.pow(2.0, deltaBits - 1) - 2) / 2;
+		final int minDeltas = -maxDeltas;
+		final double[] vals = new double[numStages];
+		// Without keyframes the second channel carries on the first channel's totals,
+		// in the order DPCMRecoder adds them up
+		final double[] stageErrors = new double[numStages];
+		for (int k = 0; k < numStages; k++)
+		{
+			stageErrors[k] = errors[k][job];
+		}
+
+		if (keyframeInterval > 0)
+		{
+			Arrays.fill(scales, 1);
+		}
+
+		for (int i = begin; i < end; i++)
+		{
+			double sum = start[i];
+			for (int k = 0; k < numStages; k++)
+			{
+				final double remainder = source[i] - sum;
+				if (keyframeInterval > 0 && i == begin)
+				{
+					final long key = Math.round(remainder / delta);
+					stages[k].keys[c][segment] = key;
+					vals[k] = key * delta;
+				}
+
+				int deltas;
+				if (deltaBits == 1)
+				{
+					deltas = (remainder - vals[k]) / delta >= 0.0 ? 1 : -1;
+				}
+				else if (deltaBits == 2)
+				{
+					deltas = (int) Math.round((remainder - vals[k]) / delta);
+					deltas = Math.max(Math.min(deltas, maxDeltas), minDeltas);
+				}
+				else
+				{
+					final int scale = scales[k];
+					deltas = (int) Math.round((remainder - vals[k]) / delta);
+					if (deltas >= maxDeltas * scale)
+					{
+						deltas = maxDeltas * scale;
+						scales[k] = scale * 2;
+					}
+					else if (deltas <= minDeltas * scale)
+					{
+						deltas = minDeltas * scale;
+						scales[k] = scale * 2;
+					}
+					else if (scale > 1)
+					{
+						scales[k] = scale / 2;
+					}
+				}
+
+				vals[k] += deltas * delta;
+				if (keepCodes)
+				{
+					stages[k].codes[c][i] = deltas;
+				}
+
+				stageErrors[k] += Math.abs(vals[k] - remainder);
+				sum += vals[k];
+			}
+
+			target[i] = sum;
+		}
+
+		for (int k = 0; k < numStages; k++)
+		{
+			errors[k][job] = stageErrors[k];
+		}
+	}
+
+	public void setKeepCodes(final boolean keepCodes)
+	{
+		this.keepCodes = keepCodes;
+	}
+
+	public void setKeyframes(final int keyframeInterval, final int numThreads)
+	{
+		this.keyframeInterval = keyframeInterval;
+		this.numThreads = numThreads;
+	}
+
+	public DPCMRecoder[] stages()
+	{
+		return stages;
+	}
+}
@@ -1,11 +1,50 @@
 package audio;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 public class DPCMRecoder
 {
+	class SegmentThread implements Runnable
+	{
+		WaveData in;
+		double[][] out;
+		double[] errors;
+		int beginJob;
+		int endJob;
+
+		public SegmentThread(final WaveData in, final double[][] out, final double[] errors, final int beginJob, final int endJob)
+		{
+			this.in = in;
+			this.out = out;
+			this.errors = errors;
+			this.beginJob = beginJob;
+			this.endJob = endJob;
+		}
+
+		@Override
+		public void run()
+		{
+			final int numSegments = keys[0].length;
+			for (int j = beginJob; j < endJob; j++)
+			{
+				final int c = j / numSegments;
+				final double[] source = c == 0 ? in.channel1() : in.channel2();
+				errors[j] = recodeSegment(source, out[c], codes == null ? null : codes[c], keys[c], j % numSegments);
+			}
+		}
+	}
+
 	byte deltaBits;
 	byte outputBits;
 	double sumAbsoluteError = 0.0;
 	long count = 0;
+	private boolean keepCodes = false;
+	int[][] codes;
+	int[] initialScales;
+	int keyframeInterval = 0;
+	private int numThreads = 1;
+	long[][] keys;
 
 	public DPCMRecoder(final byte deltaBits, final byte outputBits)
 	{
@@ -20,6 +59,18 @@ public class DPCMRecoder
 
 	public WaveData recode(final WaveData in)
 	{
+		if (keepCodes)
+		{
+			codes = new int[in.stereo() ? 2 : 1][in.samples()];
+			initialScales = new int[codes.length];
+			Arrays.fill(initialScales, 1);
+		}
+
+		if (keyframeInterval > 0)
+		{
+			return recodeKeyframed(in);
+		}
+
 		if (deltaBits == 1)
 		{
 			// Has no concept of staying unchanged - it's weird
@@ -65,11 +116,22 @@ public class DPCMRecoder
 
 				val += deltas * delta;
 				left[i] = val;
+				if (codes != null)
+				{
+					codes[0][i] = deltas;
+				}
+
 				sumAbsoluteError += Math.abs(left[i] - in.channel1()[i]);
 				++count;
 			}
 
 			val = 0.0;
+			if (codes != null)
+			{
+				// The right channel carries on with the left channel's scale
+				initialScales[1] = scale;
+			}
+
 			for (int i = 0; i < numSamples; i++)
 			{
 				int deltas = (int) Math.round((in.channel2()[i] - val) / delta);
@@ -90,6 +152,11 @@ public class DPCMRecoder
 
 				val += deltas * delta;
 				right[i] = val;
+				if (codes != null)
+				{
+					codes[1][i] = deltas;
+				}
+
 				sumAbsoluteError += Math.abs(right[i] - in.channel2()[i]);
 				++count;
 			}
@@ -118,6 +185,11 @@ public class DPCMRecoder
 
 				val += deltas * delta;
 				left[i] = val;
+				if (codes != null)
+				{
+					codes[0][i] = deltas;
+				}
+
 				sumAbsoluteError += Math.abs(left[i] - in.channel1()[i]);
 				++count;
 			}
@@ -126,6 +198,20 @@ public class DPCMRecoder
 		}
 	}
 
+	// Keep every sample's delta code from the next recode, for DPCMStream
+	public void setKeepCodes(final boolean keepCodes)
+	{
+		this.keepCodes = keepCodes;
+	}
+
+	// Restarts the predictor every keyframeInterval samples, so segments of every
+	// channel can be recoded on separate threads and decoded on their own
+	public void setKeyframes(final int keyframeInterval, final int numThreads)
+	{
+		this.keyframeInterval = keyframeInterval;
+		this.numThreads = numThreads;
+	}
+
 	private WaveData recode1Bit(final WaveData in)
 	{
 		final int numSamples = in.samples();
@@ -149,6 +235,11 @@ public class DPCMRecoder
 
 				val += deltas * delta;
 				left[i] = val;
+				if (codes != null)
+				{
+					codes[0][i] = (int) deltas;
+				}
+
 				sumAbsoluteError += Math.abs(left[i] - in.channel1()[i]);
 				++count;
 			}
@@ -168,7 +259,12 @@ public class DPCMRecoder
 
 				val += deltas * delta;
 				right[i] = val;
-				sumAbsoluteError += Math.abs(right[i] - in.channel1()[i]);
+				if (codes != null)
+				{
+					codes[1][i] = (int) deltas;
+				}
+
+				sumAbsoluteError += Math.abs(right[i] - in.channel2()[i]);
 				++count;
 			}
 
@@ -190,6 +286,11 @@ public class DPCMRecoder
 
 				val += deltas * delta;
 				left[i] = val;
+				if (codes != null)
+				{
+					codes[0][i] = (int) deltas;
+				}
+
 				sumAbsoluteError += Math.abs(left[i] - in.channel1()[i]);
 				++count;
 			}
@@ -224,6 +325,11 @@ public class DPCMRecoder
 
 				val += deltas * delta;
 				left[i] = val;
+				if (codes != null)
+				{
+					codes[0][i] = deltas;
+				}
+
 				sumAbsoluteError += Math.abs(left[i] - in.channel1()[i]);
 				++count;
 			}
@@ -244,6 +350,11 @@ public class DPCMRecoder
 
 				val += deltas * delta;
 				right[i] = val;
+				if (codes != null)
+				{
+					codes[1][i] = deltas;
+				}
+
 				sumAbsoluteError += Math.abs(right[i] - in.channel2()[i]);
 				++count;
 			}
@@ -267,6 +378,11 @@ public class DPCMRecoder
 
 				val += deltas * delta;
 				left[i] = val;
+				if (codes != null)
+				{
+					codes[0][i] = deltas;
+				}
+
 				sumAbsoluteError += Math.abs(left[i] - in.channel1()[i]);
 				++count;
 			}
@@ -274,4 +390,110 @@ public class DPCMRecoder
 			return new WaveData(left, in.rate());
 		}
 	}
+
+	private WaveData recodeKeyframed(final WaveData in)
+	{
+		final int numSamples = in.samples();
+		final int channels = in.stereo() ? 2 : 1;
+		final int numSegments = (numSamples + keyframeInterval - 1) / keyframeInterval;
+		final double[][] out = new double[channels][numSamples];
+		final double[] errors = new double[channels * numSegments];
+		keys = new long[channels][numSegments];
+
+		final ArrayList<Thread> threads = new ArrayList<>();
+		final int perThread = Math.max((errors.length + numThreads - 1) / numThreads, 1);
+		for (int j = 0; j < errors.length; j += perThread)
+		{
+			final Thread thread = new Thread(new SegmentThread(in, out, errors, j, Math.min(j + perThread, errors.length)));
+			thread.start();
+			threads.add(thread);
+		}
+
+		for (final Thread thread : threads)
+		{
+			while (true)
+			{
+				try
+				{
+					thread.join();
+					break;
+				}
+				catch (final Exception e)
+				{
+				}
+			}
+		}
+
+		// Summed in segment order so the total doesn't depend on the thread count
+		for (final double error : errors)
+		{
+			sumAbsoluteError += error;
+		}
+
+		count += (long) channels * numSamples;
+		if (in.stereo())
+		{
+			return new WaveData(out[0], out[1], in.rate());
+		}
+
+		return new WaveData(out[0], in.rate());
+	}
+
+	// One keyframe interval of one channel. The predictor starts from the first
+	// sample rounded to the output resolution, which is kept in keys, and a scale of 1.
+	// Returns the sum of absolute errors
+	private double recodeSegment(final double[] source, final double[] target, final int[] channelCodes, final long[] channelKeys, final int segment)
+	{
+		final int start = segment * keyframeInterval;
+		final int end = Math.min(start + keyframeInterval, source.length);
+		final double delta = 2.0 / (Math.pow(2.0, outputBits) - 1);
+		final int maxDeltas = deltaBits == 2 ? 1 : (int) (Math.pow(2.0, deltaBits - 1) - 2) / 2;
+		final int minDeltas = -maxDeltas;
+		channelKeys[segment] = Math.round(source[start] / delta);
+		double val = channelKeys[segment] * delta;
+		int scale = 1;
+		double error = 0.0;
+		for (int i = start; i < end; i++)
+		{
+			int deltas;
+			if (deltaBits == 1)
+			{
+				deltas = (source[i] - val) / delta >= 0.0 ? 1 : -1;
+			}
+			else if (deltaBits == 2)
+			{
+				deltas = (int) Math.round((source[i] - val) / delta);
+				deltas = Math.max(Math.min(deltas, maxDeltas), minDeltas);
+			}
+			else
+			{
+				deltas = (int) Math.round((source[i] - val) / delta);
+				if (deltas >= maxDeltas * scale)
+				{
+					deltas = maxDeltas * scale;
+					scale *= 2;
+				}
+				else if (deltas <= minDeltas * scale)
+				{
+					deltas = minDeltas * scale;
+					scale *= 2;
+				}
+				else if (scale > 1)
+				{
+					scale /= 2;
+				}
+			}
+
+			val += deltas * delta;
+			target[i] = val;
+			if (channelCodes != null)
+			{
+				channelCodes[i] = deltas;
+			}
+
+			error += Math.abs(target[i] - source[i]);
+		}
+
+		return error;
+	}
 }
@@ -0,0 +1,359 @@
+package audio;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+// The delta codes of every DPCM pass, so DPCM output can be stored at about
+// deltaBits per sample. Layout, little endian:
+// "DPCB", version, rate, samples, channels, deltaBits, outputBits, keyframe
+// interval (0 for none), passes
+// then per pass and channel: starting scale, (starting value as a long, byte
+// offset) per keyframe, byte count and the packed codes. Each keyframe starts on a byte.
+// 1 and 2 bit codes are stored as-is. Wider codes range over +/- maxDeltas * scale,
+// and scale follows from the codes, so each code is stored in just enough bits
+// for the scale in effect at that sample
+public class DPCMStream
+{
+	static class Pass
+	{
+		int[] initialScales;
+		long[][] keys;
+		int[][] offsets;
+		byte[][] packed;
+	}
+
+	private static final int MAGIC = 0x42435044; // DPCB
+	private static final byte VERSION = 3;
+
+	private final int rate;
+	private final int samples;
+	private final boolean stereo;
+	private final byte deltaBits;
+	private final byte outputBits;
+	private final int keyframeInterval;
+	final ArrayList<Pass> passes = new ArrayList<>();
+
+	public DPCMStream(final int rate, final int samples, final boolean stereo, final byte deltaBits, final byte outputBits, final int keyframeInterval)
+	{
+		this.rate = rate;
+		this.samples = samples;
+		this.stereo = stereo;
+		this.deltaBits = deltaBits;
+		this.outputBits = outputBits;
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	static boolean isStream(final String filename) throws Exception
+	{
+		final InputStream inputStream = new FileInputStream(filename);
+		final byte[] magic = new byte[4];
+		final int read = inputStream.read(magic);
+		inputStream.close();
+		return read == 4 && ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN).getInt() == MAGIC;
+	}
+
+	public static DPCMStream read(final String filename) throws Exception
+	{
+		final InputStream inputStream = new FileInputStream(filename);
+		final byte[] allBytes = new byte[(int) new File(filename).length()];
+		int pos = 0;
+		while (pos < allBytes.length)
+		{
+			pos += inputStream.read(allBytes, pos, allBytes.length - pos);
+		}
+
+		inputStream.close();
+
+		final ByteBuffer bb = ByteBuffer.wrap(allBytes);
+		bb.order(ByteOrder.LITTLE_ENDIAN);
+		if (bb.getInt() != MAGIC)
+		{
+			throw new Exception("File is not a DPCM stream");
+		}
+
+		if (bb.get() != VERSION)
+		{
+			throw new Exception("Unsupported DPCM stream version");
+		}
+
+		final int rate = bb.getInt();
+		final int samples = bb.getInt();
+		final boolean stereo = bb.get() == 2;
+		final byte deltaBits = bb.get();
+		final byte outputBits = bb.get();
+		final int keyframeInterval = bb.getInt();
+		final DPCMStream retval = new DPCMStream(rate, samples, stereo, deltaBits, outputBits, keyframeInterval);
+
+		final int numPasses = bb.getInt();
+		final int channels = stereo ? 2 : 1;
+		final int numSegments = retval.numSegments();
+		for (int p = 0; p < numPasses; p++)
+		{
+			final Pass pass = new Pass();
+			pass.initialScales = new int[channels];
+			pass.keys = new long[channels][numSegments];
+			pass.offsets = new int[channels][numSegments];
+			pass.packed = new byte[channels][];
+			for (int c = 0; c < channels; c++)
+			{
+				pass.initialScales[c] = bb.getInt();
+				for (int s = 0; s < numSegments; s++)
+				{
+					pass.keys[c][s] = bb.getLong();
+					pass.offsets[c][s] = bb.getInt();
+				}
+
+				pass.packed[c] = new byte[bb.getInt()];
+				bb.get(pass.packed[c]);
+			}
+
+			retval.passes.add(pass);
+		}
+
+		return retval;
+	}
+
+	// Scale only ever doubles or halves, so it is tracked as a power of two
+	private static int nextExponent(final int code, final int limit, final int exp)
+	{
+		if (code >= limit || code <= -limit)
+		{
+			return exp + 1;
+		}
+
+		if (exp > 0)
+		{
+			return exp - 1;
+		}
+
+		return 0;
+	}
+
+	public void addPass(final DPCMRecoder coder)
+	{
+		final int channels = coder.codes.length;
+		final int numSegments = numSegments();
+		final int interval = interval();
+		final int[] widths = widths();
+		final int maxDeltas = maxDeltas();
+		final Pass pass = new Pass();
+		pass.initialScales = coder.initialScales;
+		pass.keys = coder.keys != null ? coder.keys : new long[channels][numSegments];
+		pass.offsets = new int[channels][numSegments];
+		pass.packed = new byte[channels][];
+		for (int c = 0; c < channels; c++)
+		{
+			final BitWriter out = new BitWriter();
+			final int[] codes = coder.codes[c];
+			for (int s = 0; s < numSegments; s++)
+			{
+				out.align();
+				pass.offsets[c][s] = (int) (out.bits() >>> 3);
+				final int end = Math.min((s + 1) * interval, samples);
+				int exp = s == 0 ? Integer.numberOfTrailingZeros(pass.initialScales[c]) : 0;
+				for (int i = s * interval; i < end; i++)
+				{
+					if (deltaBits == 1)
+					{
+						out.write(codes[i] > 0 ? 1 : 0, 1);
+					}
+					else if (deltaBits == 2)
+					{
+						out.write(codes[i] + 1, 2);
+					}
+					else
+					{
+						final int limit = maxDeltas << exp;
+						out.write(codes[i] + limit, widths[exp]);
+						exp = nextExponent(codes[i], limit, exp);
+					}
+				}
+			}
+
+			pass.packed[c] = out.toByteArray();
+		}
+
+		passes.add(pass);
+	}
+
+	// Sum of every pass, exactly as the recoders produced it
+	public WaveData decode()
+	{
+		return decode(0, samples);
+	}
+
+	// Like decode(), but only the given samples. Decoding starts at the keyframe at
+	// or before start
+	public WaveData decode(final int start, final int length)
+	{
+		final int channels = stereo ? 2 : 1;
+		final int end = Math.min(start + length, samples);
+		final double[][] out = new double[channels][Math.max(end - start, 0)];
+		for (final Pass pass : passes)
+		{
+			for (int c = 0; c < channels; c++)
+			{
+				decodeChannel(pass, c, out[c], start, end);
+			}
+		}
+
+		if (stereo)
+		{
+			return new WaveData(out[0], out[1], rate);
+		}
+
+		return new WaveData(out[0], rate);
+	}
+
+	private void decodeChannel(final Pass pass, final int c, final double[] target, final int start, final int end)
+	{
+		final int interval = interval();
+		final int[] widths = widths();
+		final int maxDeltas = maxDeltas();
+		final double delta = 2.0 / (Math.pow(2.0, outputBits) - 1);
+		for (int s = start / interval; s * interval < end; s++)
+		{
+			final BitReader in = new BitReader(pass.packed[c], pass.offsets[c][s]);
+			final int segmentEnd = Math.min((s + 1) * interval, end);
+			int exp = s == 0 ? Integer.numberOfTrailingZeros(pass.initialScales[c]) : 0;
+			double val = pass.keys[c][s] * delta;
+			for (int i = s * interval; i < segmentEnd; i++)
+			{
+				int code;
+				if (deltaBits == 1)
+				{
+					code = (int) in.read(1) * 2 - 1;
+				}
+				else if (deltaBits == 2)
+				{
+					code = (int) in.read(2) - 1;
+				}
+				else
+				{
+					final int limit = maxDeltas << exp;
+					code = (int) in.read(widths[exp]) - limit;
+					exp = nextExponent(code, limit, exp);
+				}
+
+				val += code * delta;
+				if (i >= start)
+				{
+					target[i - start] += val;
+				}
+			}
+		}
+	}
+
+	// Samples between keyframes, the whole channel when there are none
+	private int interval()
+	{
+		return keyframeInterval > 0 ? keyframeInterval : Math.max(samples, 1);
+	}
+
+	public int keyframeInterval()
+	{
+		return keyframeInterval;
+	}
+
+	private int maxDeltas()
+	{
+		return (int) (Math.pow(2.0, deltaBits - 1) - 2) / 2;
+	}
+
+	private int numSegments()
+	{
+		return (samples + interval() - 1) / interval();
+	}
+
+	public int rate()
+	{
+		return rate;
+	}
+
+	public int samples()
+	{
+		return samples;
+	}
+
+	// Bytes write() would produce
+	public long size()
+	{
+		long size = 24;
+		for (final Pass pass : passes)
+		{
+			for (final byte[] packed : pass.packed)
+			{
+				size += 8 + 8 * numSegments() + packed.length;
+			}
+		}
+
+		return size;
+	}
+
+	public boolean stereo()
+	{
+		return stereo;
+	}
+
+	// Bits per code for each scale exponent
+	private int[] widths()
+	{
+		final int[] widths = new int[31];
+		for (int exp = 0; exp < widths.length; exp++)
+		{
+			widths[exp] = BitWriter.bitsFor(2L * maxDeltas() << exp);
+		}
+
+		return widths;
+	}
+
+	// Returns the number of bytes written
+	public long write(final String filename) throws Exception
+	{
+		final ByteBuffer header = ByteBuffer.allocate(24);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.put(VERSION);
+		header.putInt(rate);
+		header.putInt(samples);
+		header.put((byte) (stereo ? 2 : 1));
+		header.put(deltaBits);
+		header.put(outputBits);
+		header.putInt(keyframeInterval);
+		header.putInt(passes.size());
+
+		final OutputStream outputStream = new FileOutputStream(filename);
+		outputStream.write(header.array());
+		long size = header.capacity();
+
+		final int numSegments = numSegments();
+		for (final Pass pass : passes)
+		{
+			for (int c = 0; c < pass.packed.length; c++)
+			{
+				final ByteBuffer channelHeader = ByteBuffer.allocate(8 + 12 * numSegments);
+				channelHeader.order(ByteOrder.LITTLE_ENDIAN);
+				channelHeader.putInt(pass.initialScales[c]);
+				for (int s = 0; s < numSegments; s++)
+				{
+					channelHeader.putLong(pass.keys[c][s]);
+					channelHeader.putInt(pass.offsets[c][s]);
+				}
+
+				channelHeader.putInt(pass.packed[c].length);
+				outputStream.write(channelHeader.array());
+				outputStream.write(pass.packed[c]);
+				size += channelHeader.capacity() + pass.packed[c].length;
+			}
+		}
+
+		outputStream.close();
+		return size;
+	}
+}
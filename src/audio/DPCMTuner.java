@@ -0,0 +1,192 @@
+package audio;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Tries every combination of a list of deltaBits, outputBits and pcmChannels on the
+// same input and prints the size of the DPCM codes against the error of each, so
+// settings can be picked without a DPCM run per combination. Reads the same
+// properties file as DPCM, plus
+// tuneDeltaBits=1,2,3,4
+// tuneOutputBits=8,12,16
+// tunePcmChannels=1,2,3
+public class DPCMTuner
+{
+	static class Setting
+	{
+		byte deltaBits;
+		byte outputBits;
+		int pcmChannels;
+		double bitsPerSample;
+		double error;
+		boolean optimal;
+	}
+
+	class WorkThread implements Runnable
+	{
+		@Override
+		public void run()
+		{
+			for (int i = next.getAndIncrement(); i < settings.size(); i = next.getAndIncrement())
+			{
+				evaluate(settings.get(i));
+			}
+		}
+	}
+
+	private final WaveData original;
+	private final int keyframeInterval;
+	private final ArrayList<Setting> settings = new ArrayList<>();
+	private final AtomicInteger next = new AtomicInteger(0);
+
+	public DPCMTuner(final WaveData original, final int keyframeInterval)
+	{
+		this.original = original;
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	public static void main(final String[] args) throws Exception
+	{
+		if (args.length == 0)
+		{
+			System.out.println("Usage: DPCMTuner <properties file filename>");
+			System.exit(0);
+		}
+
+		final Properties prop = DPCM.readProperties(args[0]);
+		final WaveData original;
+		try
+		{
+			original = DPCM.readInput(prop, new Profile(null));
+		}
+		catch (final DPCM.ConfigException e)
+		{
+			System.out.println(e.getMessage());
+			System.exit(0);
+			return;
+		}
+
+		final int[] deltaBits = parseList(prop, "tuneDeltaBits", "1,2,3,4,5,6");
+		final int[] outputBits = parseList(prop, "tuneOutputBits", "8,10,12,14,16");
+		final int[] pcmChannels = parseList(prop, "tunePcmChannels", "1,2,3");
+		final int threads = Integer.parseInt(prop.getProperty("threads", "1"));
+		final int keyframeInterval = Integer.parseInt(prop.getProperty("dpcmKeyframeInterval", "0"));
+
+		final DPCMTuner tuner = new DPCMTuner(original, keyframeInterval);
+		for (final int db : deltaBits)
+		{
+			for (final int ob : outputBits)
+			{
+				for (final int pc : pcmChannels)
+				{
+					tuner.add((byte) db, (byte) ob, pc);
+				}
+			}
+		}
+
+		final long start = System.nanoTime();
+		tuner.run(threads);
+		final double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println("deltaBits outputBits pcmChannels bits/sample  error");
+		for (final Setting setting : tuner.settings())
+		{
+			System.out.println(String.format("%9d %10d %11d %11.3f  %.6f%s", setting.deltaBits, setting.outputBits, setting.pcmChannels, setting.bitsPerSample, setting.error, setting.optimal ? "  *" : ""));
+		}
+
+		System.out.println("* nothing else is both as small and as accurate");
+		System.out.println("Tried " + tuner.settings().size() + " settings in " + seconds + "s");
+	}
+
+	private static int[] parseList(final Properties prop, final String name, final String defaultValue)
+	{
+		final String[] parts = prop.getProperty(name, defaultValue).split(",");
+		final int[] retval = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+		{
+			retval[i] = Integer.parseInt(parts[i].trim());
+			if (retval[i] <= 0)
+			{
+				System.out.println("Every value of " + name + " must be positive");
+				System.exit(0);
+			}
+		}
+
+		return retval;
+	}
+
+	public void add(final byte deltaBits, final byte outputBits, final int pcmChannels)
+	{
+		final Setting setting = new Setting();
+		setting.deltaBits = deltaBits;
+		setting.outputBits = outputBits;
+		setting.pcmChannels = pcmChannels;
+		settings.add(setting);
+	}
+
+	// Each setting only reads the shared input, so they run side by side
+	private void evaluate(final Setting setting)
+	{
+		final int numSamples = original.samples();
+		final WaveData start = original.stereo() ? new WaveData(new double[numSamples], new double[numSamples], original.rate()) : new WaveData(new double[numSamples], original.rate());
+		final DPCMCascade cascade = new DPCMCascade(setting.deltaBits, setting.outputBits, setting.pcmChannels);
+		cascade.setKeepCodes(true);
+		cascade.setKeyframes(keyframeInterval, 1);
+		cascade.recode(original, start);
+
+		final DPCMStream stream = new DPCMStream(original.rate(), original.samples(), original.stereo(), setting.deltaBits, setting.outputBits, keyframeInterval);
+		for (final DPCMRecoder stage : cascade.stages())
+		{
+			stream.addPass(stage);
+		}
+
+		final long codes = (long) original.samples() * (original.stereo() ? 2 : 1);
+		setting.bitsPerSample = stream.size() * 8.0 / codes;
+
+		// The last pass recodes everything the others missed, so its error is the
+		// error of the whole cascade
+		final DPCMRecoder[] stages = cascade.stages();
+		setting.error = stages[stages.length - 1].averageError();
+	}
+
+	// Evaluates every setting, then sorts them by size and marks the Pareto front
+	public void run(final int numThreads)
+	{
+		final Thread[] threads = new Thread[Math.min(numThreads, settings.size())];
+		for (int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread(new WorkThread());
+			threads[i].start();
+		}
+
+		for (final Thread thread : threads)
+		{
+			while (true)
+			{
+				try
+				{
+					thread.join();
+					break;
+				}
+				catch (final Exception e)
+				{
+				}
+			}
+		}
+
+		settings.sort(Comparator.comparingDouble((final Setting s) -> s.bitsPerSample).thenComparingDouble(s -> s.error));
+		double bestError = Double.MAX_VALUE;
+		for (final Setting setting : settings)
+		{
+			setting.optimal = setting.error < bestError;
+			bestError = Math.min(bestError, setting.error);
+		}
+	}
+
+	public ArrayList<Setting> settings()
+	{
+		return settings;
+	}
+}
@@ -0,0 +1,234 @@
+package audio;
+
+import java.util.Arrays;
+
+// The full table as integers, one slab per frequency with each row in turn. Entries
+// are multiples of the recoder's tableStep() on a grid 2^codeShift times finer,
+// which the block is rounded to as well, clamped to +/- codeLimit. Bytes when the
+// shape's tableSteps() fit in them, shorts otherwise
+class IntegerTable extends SynthTable
+{
+	private final byte[][] byteCodes;
+	private final short[][] shortCodes;
+	private final int codeShift;
+	private final int codeLimit;
+	private final double codeStep;
+	private final double codeUnit;
+	// Largest distance of an entry from its code, in grid steps. When it's 0 entries
+	// are decoded from the codes, otherwise they are computed by waves
+	private final double codeRoundoff;
+	private final SynthTable waves;
+
+	IntegerTable(final SynthRecoder coder, final int minFreq, final int maxFreq, final int rate, final int threads)
+	{
+		super(minFreq, maxFreq, coder.synthModRate);
+		if (!coder.integral())
+		{
+			throw new IllegalStateException("The table doesn't fit an integer table");
+		}
+
+		waves = new WaveTable(coder, rate);
+		final int rows = coder.ampSteps() * 2;
+		final double step = coder.tableStep();
+		final boolean bytes = coder.integralBytes();
+		final int largest = (int) coder.tableSteps();
+
+		// As fine a grid as keeps every entry within the type and every score within an
+		// int. A block sample beyond every entry adds the same to every candidate's
+		// error whether it's clamped or not, so clamping doesn't change which candidate
+		// scores best
+		int shift = 0;
+		while ((largest << (shift + 1)) <= (bytes ? Byte.MAX_VALUE : Short.MAX_VALUE) && (long) synthModRate * 2 * (largest << (shift + 1)) < Integer.MAX_VALUE)
+		{
+			++shift;
+		}
+
+		final int codeShift = shift;
+		this.codeShift = codeShift;
+		codeLimit = largest << codeShift;
+		codeStep = step;
+		codeUnit = step / (1 << codeShift);
+		final byte[][] byteCodes = bytes ? new byte[maxFreq - minFreq + 1][rows * synthModRate] : null;
+		final short[][] shortCodes = bytes ? null : new short[maxFreq - minFreq + 1][rows * synthModRate];
+		this.byteCodes = byteCodes;
+		this.shortCodes = shortCodes;
+
+		// Per frequency, since each is filled by one thread
+		final double[] roundoffs = new double[maxFreq - minFreq + 1];
+		minSum = coder.fillRows(minFreq, maxFreq, rate, threads, (z, a, row) ->
+		{
+			for (int s = 0; s < synthModRate; s++)
+			{
+				final long code = Math.round(row[s] / step);
+				if (Math.abs(code) > largest)
+				{
+					throw new IllegalStateException("The table has values too large for an integer table");
+				}
+
+				if (bytes)
+				{
+					byteCodes[z - minFreq][a * synthModRate + s] = (byte) (code << codeShift);
+				}
+				else
+				{
+					shortCodes[z - minFreq][a * synthModRate + s] = (short) (code << codeShift);
+				}
+
+				roundoffs[z - minFreq] = Math.max(roundoffs[z - minFreq], Math.abs(row[s] - code * step));
+			}
+		});
+
+		double roundoff = 0;
+		for (final double r : roundoffs)
+		{
+			roundoff = Math.max(roundoff, r);
+		}
+
+		codeRoundoff = roundoff / codeUnit;
+	}
+
+	// Entry of the table, exact when codeRoundoff is 0
+	private double decode(final int f, final int index)
+	{
+		final int code = byteCodes != null ? byteCodes[f - minFreq][index] : shortCodes[f - minFreq][index];
+		return (code >> codeShift) * codeStep;
+	}
+
+	@Override
+	double get(final int f, final int row, final int s)
+	{
+		if (codeRoundoff != 0)
+		{
+			return waves.get(f, row, s);
+		}
+
+		return decode(f, row * synthModRate + s);
+	}
+
+	@Override
+	double error(final double[] data, final int start, final int f, final int row)
+	{
+		if (codeRoundoff != 0)
+		{
+			return waves.error(data, start, f, row);
+		}
+
+		final int offset = row * synthModRate - start;
+		double error = 0;
+		for (int i = start; i < start + synthModRate; i++)
+		{
+			error += Math.abs(data[i] - decode(f, offset + i));
+		}
+
+		return error;
+	}
+
+	// The sweep over the integer table. Every candidate is scored as the sum of
+	// absolute differences between its codes and the block on the fine grid, and
+	// those that could still be the best given how far a score can be from the exact
+	// error are scored exactly afterwards, in the sweep's order. So the winner is the
+	// same as the plain sweep's
+	@Override
+	boolean sweep(final double[] source, final int start, final int lo, final int hi, final int ampSteps, final SynthRecoder.Candidate best)
+	{
+		// The block on the grid, in the table's type so the sums don't widen either side,
+		// and how far it moved getting there in grid steps. A clamped sample moves every
+		// candidate's error the same, apart from entries up to codeRoundoff past the
+		// clamp
+		final byte[] byteResidual = byteCodes == null ? null : new byte[synthModRate];
+		final short[] shortResidual = shortCodes == null ? null : new short[synthModRate];
+		double rounding = 0;
+		for (int s = 0; s < synthModRate; s++)
+		{
+			final double sample = source[start + s] / codeUnit;
+			final long code = Math.max(-codeLimit, Math.min(codeLimit, Math.round(sample)));
+			rounding += Math.abs(sample) > codeLimit ? 2.0 * codeRoundoff : Math.abs(sample - code);
+			if (byteResidual != null)
+			{
+				byteResidual[s] = (byte) code;
+			}
+			else
+			{
+				shortResidual[s] = (short) code;
+			}
+		}
+
+		// A term of a score differs from the exact one by at most the sample's rounding
+		// plus codeRoundoff, so a score is within rounding + synthModRate * codeRoundoff
+		// of the exact error, after the same shift for clamping. The best can be that
+		// far above its exact error and the rest that far below, so candidates up to
+		// twice that over the best score are scored exactly. The extra steps are room for
+		// the rounding of the exact errors themselves
+		final long slack = (long) Math.ceil(2.0 * (rounding + synthModRate * codeRoundoff)) + 2;
+
+		// Frequency, row and score of every candidate that was close to the best score
+		// so far when it was scored
+		int[] kept = new int[3 * 16];
+		int numKept = 0;
+		long bestScore = Integer.MAX_VALUE;
+		for (int z = lo; z <= hi; z++)
+		{
+			for (int a = 1; a <= ampSteps; a++)
+			{
+				for (int sign = 1; sign >= -1; sign -= 2)
+				{
+					final int row = sign > 0 ? a - 1 : ampSteps + a - 1;
+					final int offset = row * synthModRate;
+					final int score = byteCodes != null ? score(byteCodes[z - minFreq], offset, byteResidual) : score(shortCodes[z - minFreq], offset, shortResidual);
+					bestScore = Math.min(bestScore, score);
+					if (score <= bestScore + slack)
+					{
+						if (numKept == kept.length)
+						{
+							kept = Arrays.copyOf(kept, kept.length * 2);
+						}
+
+						kept[numKept++] = z;
+						kept[numKept++] = row;
+						kept[numKept++] = score;
+					}
+				}
+			}
+		}
+
+		best.evaluated += 2 * ampSteps * Math.max(hi - lo + 1, 0);
+		for (int k = 0; k < numKept; k += 3)
+		{
+			if (kept[k + 2] <= bestScore + slack)
+			{
+				final int row = kept[k + 1];
+				final double error = error(source, start, kept[k], row);
+				if (error < best.error)
+				{
+					best.freq = kept[k];
+					best.step = row < ampSteps ? row + 1 : -(row - ampSteps + 1);
+					best.error = error;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	private static int score(final byte[] codes, final int offset, final byte[] residual)
+	{
+		int retval = 0;
+		for (int s = 0; s < residual.length; s++)
+		{
+			retval += Math.abs(residual[s] - codes[offset + s]);
+		}
+
+		return retval;
+	}
+
+	private static int score(final short[] codes, final int offset, final short[] residual)
+	{
+		int retval = 0;
+		for (int s = 0; s < residual.length; s++)
+		{
+			retval += Math.abs(residual[s] - codes[offset + s]);
+		}
+
+		return retval;
+	}
+}
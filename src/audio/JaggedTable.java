@@ -0,0 +1,40 @@
+package audio;
+
+// The full table, or a shard of it, as doubles with an array per row
+class JaggedTable extends SynthTable
+{
+	private final double[][][] rows;
+
+	JaggedTable(final SynthRecoder coder, final int minFreq, final int maxFreq, final int rate, final int threads)
+	{
+		super(minFreq, maxFreq, coder.synthModRate);
+		final double[][][] rows = new double[maxFreq - minFreq + 1][coder.ampSteps() * 2][synthModRate];
+		this.rows = rows;
+		minSum = coder.fillRows(minFreq, maxFreq, rate, threads, (z, a, row) -> System.arraycopy(row, 0, rows[z - minFreq][a], 0, synthModRate));
+	}
+
+	@Override
+	double get(final int f, final int row, final int s)
+	{
+		return rows[f - minFreq][row][s];
+	}
+
+	@Override
+	double[] row(final int f, final int row, final double[] buffer)
+	{
+		return rows[f - minFreq][row];
+	}
+
+	@Override
+	double error(final double[] data, final int start, final int f, final int row)
+	{
+		final double[] entries = rows[f - minFreq][row];
+		double error = 0;
+		for (int i = start; i < start + synthModRate; i++)
+		{
+			error += Math.abs(data[i] - entries[i - start]);
+		}
+
+		return error;
+	}
+}
@@ -0,0 +1,478 @@
+package audio;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class JointRecoder
+{
+	// Searches one channel's blocks over a range of frequencies, for the sweep of each
+	// block split between threads
+	class PartThread implements Runnable
+	{
+		double[] source;
+		int index;
+		int channel;
+		int minFreq;
+		int maxFreq;
+		SynthRecoder.Candidate[][] bests;
+
+		public PartThread(final double[] source, final int index, final int channel, final int minFreq, final int maxFreq, final SynthRecoder.Candidate[][] bests)
+		{
+			this.source = source;
+			this.index = index;
+			this.channel = channel;
+			this.minFreq = minFreq;
+			this.maxFreq = maxFreq;
+			this.bests = bests;
+		}
+
+		@Override
+		public void run()
+		{
+			final int[] ampSteps = ampSteps();
+			final long channelBlocks = source.length / synthModRate;
+			final int beginI = (int) (channelBlocks * index / timeThreads) * synthModRate;
+			final int endI = (int) (channelBlocks * (index + 1) / timeThreads) * synthModRate;
+			final double[] block = new double[synthModRate];
+			for (int i = beginI; i + synthModRate <= endI; i += synthModRate)
+			{
+				final int blockNum = i / synthModRate;
+				if (checkpoint != null && checkpoint.get(pass, channel, blockNum) != null)
+				{
+					continue;
+				}
+
+				double blockError = 0;
+				for (int j = 0; j < synthModRate; j++)
+				{
+					block[j] = source[i + j];
+					blockError += Math.abs(block[j]);
+				}
+
+				if (isSilent(blockError))
+				{
+					continue;
+				}
+
+				final SynthRecoder.Candidate best = new SynthRecoder.Candidate(synthMinFreq, 0, blockError);
+				sweep(block, minFreq, maxFreq, ampSteps, best);
+				bests[channel][blockNum] = best;
+			}
+		}
+	}
+
+	class WorkThread implements Runnable
+	{
+		WaveData in;
+		double[] target;
+		double[] source;
+		AtomicInteger blocks;
+		int index;
+		int numBlocks;
+		int channel;
+
+		public WorkThread(final WaveData in, final double[] target, final double[] source, final AtomicInteger blocks, final int index, final int numBlocks, final int channel)
+		{
+			this.in = in;
+			this.target = target;
+			this.source = source;
+			this.blocks = blocks;
+			this.index = index;
+			this.numBlocks = numBlocks;
+			this.channel = channel;
+		}
+
+		@Override
+		public void run()
+		{
+			final int[] ampSteps = ampSteps();
+			final int numSamples = in.samples();
+			final long channelBlocks = numSamples / synthModRate;
+			final int beginI = (int) (channelBlocks * index / timeThreads) * synthModRate;
+			final int endI = (int) (channelBlocks * (index + 1) / timeThreads) * synthModRate;
+			final double[] block = new double[synthModRate];
+			double error = 0;
+			long samples = 0;
+			final BlockParams searched = new BlockParams(1);
+			final long allocatedStart = stats == null ? 0 : Profile.allocatedBytes();
+
+			for (int i = beginI; i + synthModRate <= endI; i += synthModRate)
+			{
+				final int blockNum = i / synthModRate;
+				BlockParams params = checkpoint == null ? null : checkpoint.get(pass, channel, blockNum);
+				if (params == null)
+				{
+					params = searched;
+					if (partBests != null)
+					{
+						result(bestPart(channel, blockNum), params);
+					}
+					else
+					{
+						search(source, i, ampSteps, block, params);
+					}
+
+					if (stats != null)
+					{
+						stats.blocksSearched.increment();
+					}
+
+					if (checkpoint != null)
+					{
+						checkpoint.record(pass, channel, blockNum, params);
+					}
+				}
+
+				results[channel][blockNum] = params == searched ? params.copy() : params;
+
+				// Generate the data based on best fit for this block
+				for (int j = i; j < i + synthModRate; j++)
+				{
+					target[j] = 0;
+					for (int k = 0; k < params.count; k++)
+					{
+						target[j] += shapes[params.shapes[k]].getLookup(params.freqs[k], params.steps[k], j - i, ampSteps[params.shapes[k]]);
+					}
+
+					error += Math.abs(target[j] - source[j]);
+					++samples;
+				}
+
+				final int count = blocks.incrementAndGet();
+				System.out.println(count + "/" + numBlocks);
+			}
+
+			addError(error, samples);
+			if (stats != null)
+			{
+				stats.allocated.add(Profile.allocatedBytes() - allocatedStart);
+			}
+		}
+	}
+
+	private final SynthRecoder[] shapes;
+	private final int synthModRate;
+	private final int synthMinFreq;
+	private final int synthMaxFreq;
+	volatile double sumAbsoluteError = 0.0;
+	AtomicLong count = new AtomicLong(0);
+	private final AtomicInteger blocks;
+	private final int numBlocks;
+	private final int numThreads;
+	// Threads each channel's blocks are split between. The rest of numThreads split
+	// the frequencies of each block instead
+	private int timeThreads;
+	// Each block's best candidate per frequency range, null unless the sweep is split
+	private SynthRecoder.Candidate[][][] partBests;
+	private Checkpoint checkpoint;
+	private int pass;
+	private BlockParams[][] results;
+	private Profile profile;
+	// Counters of the recode in progress, null when it isn't being profiled
+	private Profile.Pass stats;
+
+	// Every shape must have been built with the same synthModRate and frequency
+	// range. Their lookup tables are built on first use and kept, so the same shapes
+	// can be handed to each joint pass
+	public JointRecoder(final SynthRecoder[] shapes, final int synthModRate, final int synthMinFreq, final int synthMaxFreq, final AtomicInteger blocks, final int numBlocks, final int numThreads)
+	{
+		this.shapes = shapes;
+		this.synthModRate = synthModRate;
+		this.synthMinFreq = synthMinFreq;
+		this.synthMaxFreq = synthMaxFreq;
+		this.blocks = blocks;
+		this.numBlocks = numBlocks;
+		this.numThreads = numThreads;
+	}
+
+	private synchronized void addError(final double error, final long samples)
+	{
+		sumAbsoluteError += error;
+		count.addAndGet(samples);
+	}
+
+	private int[] ampSteps()
+	{
+		final int[] retval = new int[shapes.length];
+		for (int k = 0; k < shapes.length; k++)
+		{
+			retval[k] = shapes[k].ampSteps();
+		}
+
+		return retval;
+	}
+
+	public double averageError()
+	{
+		return sumAbsoluteError / count.get();
+	}
+
+	// The best of the candidates the frequency ranges found for a block, null if the
+	// block was silent. A tie goes to the lower frequency, as in a single sweep
+	private SynthRecoder.Candidate bestPart(final int channel, final int block)
+	{
+		SynthRecoder.Candidate retval = null;
+		for (final SynthRecoder.Candidate[][] part : partBests)
+		{
+			final SynthRecoder.Candidate candidate = part[channel][block];
+			if (candidate != null && (retval == null || candidate.error < retval.error || candidate.error == retval.error && candidate.freq < retval.freq))
+			{
+				retval = candidate;
+			}
+		}
+
+		return retval;
+	}
+
+	// Reports the search of in, if it's being profiled
+	private void endSearch(final Profile.Stage search, final WaveData in)
+	{
+		if (search != null)
+		{
+			profile.end(search, (long) in.samples() * (in.stereo() ? 2 : 1));
+		}
+	}
+
+	// Adds what this thread allocated since allocatedStart and reports the pass
+	private void endPass(final long allocatedStart)
+	{
+		if (stats != null)
+		{
+			stats.allocated.add(Profile.allocatedBytes() - allocatedStart);
+			profile.endPass(stats);
+			stats = null;
+		}
+	}
+
+	private boolean isSilent(final double blockError)
+	{
+		for (final SynthRecoder shape : shapes)
+		{
+			if (!shape.isSilent(blockError))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private void join(final ArrayList<Thread> threads)
+	{
+		for (final Thread thread : threads)
+		{
+			while (true)
+			{
+				try
+				{
+					thread.join();
+					break;
+				}
+				catch (final Exception e)
+				{
+				}
+			}
+		}
+	}
+
+	// Oscillators chosen for each channel and block by the last recode, with shapes
+	// indexing shapes()
+	BlockParams[][] params()
+	{
+		return results;
+	}
+
+	public WaveData recode(final WaveData in)
+	{
+		stats = profile == null ? null : profile.beginPass(getClass().getSimpleName(), pass);
+		final long allocatedStart = stats == null ? 0 : Profile.allocatedBytes();
+		final long tableStart = System.nanoTime();
+		results = new BlockParams[in.stereo() ? 2 : 1][in.samples() / synthModRate];
+
+		// The shapes aren't profiled themselves, so their tables are one stage here,
+		// with the entries built as its samples
+		final Profile.Stage table = profile == null ? null : profile.begin("table");
+		long entries = 0;
+		for (final SynthRecoder shape : shapes)
+		{
+			if (!shape.hasLookup(in.rate()))
+			{
+				shape.buildLookup(in.rate());
+				entries += (long) shape.numFreqs() * shape.ampSteps() * 2 * synthModRate;
+			}
+		}
+
+		if (table != null)
+		{
+			profile.end(table, entries);
+		}
+
+		if (stats != null)
+		{
+			stats.tableBuild = System.nanoTime() - tableStart;
+		}
+
+		final Profile.Stage search = profile == null ? null : profile.begin("search");
+
+		// A short input has fewer blocks than threads, so the threads left over split
+		// the frequency sweep of every block between them instead
+		timeThreads = Math.max(Math.min(numThreads, results[0].length), 1);
+		final int freqThreads = numThreads / timeThreads;
+		partBests = null;
+		if (freqThreads > 1)
+		{
+			partBests = new SynthRecoder.Candidate[freqThreads][results.length][results[0].length];
+			final int width = synthMaxFreq - synthMinFreq + 1;
+			final ArrayList<Thread> threads = new ArrayList<>();
+			for (int c = 0; c < results.length; c++)
+			{
+				for (int i = 0; i < timeThreads; i++)
+				{
+					for (int p = 0; p < freqThreads; p++)
+					{
+						final PartThread runner = new PartThread(c == 0 ? in.channel1() : in.channel2(), i, c, synthMinFreq + width * p / freqThreads, synthMinFreq + width * (p + 1) / freqThreads - 1, partBests[p]);
+						final Thread thread = new Thread(runner);
+						thread.start();
+						threads.add(thread);
+					}
+				}
+			}
+
+			join(threads);
+		}
+
+		// Do left channel first as it always exists
+		final double[] left = new double[in.samples()];
+		final ArrayList<Thread> leftThreads = new ArrayList<>();
+		final ArrayList<Thread> rightThreads = new ArrayList<>();
+		for (int i = 0; i < timeThreads; i++)
+		{
+			final WorkThread runner = new WorkThread(in, left, in.channel1(), blocks, i, numBlocks, 0);
+			final Thread thread = new Thread(runner);
+			thread.start();
+			leftThreads.add(thread);
+		}
+
+		if (!in.stereo())
+		{
+			join(leftThreads);
+			endSearch(search, in);
+			endPass(allocatedStart);
+			return new WaveData(left, in.rate());
+		}
+
+		final double[] right = new double[in.samples()];
+		for (int i = 0; i < timeThreads; i++)
+		{
+			final WorkThread runner = new WorkThread(in, right, in.channel2(), blocks, i, numBlocks, 1);
+			final Thread thread = new Thread(runner);
+			thread.start();
+			rightThreads.add(thread);
+		}
+
+		join(leftThreads);
+		join(rightThreads);
+		endSearch(search, in);
+		endPass(allocatedStart);
+		return new WaveData(left, right, in.rate());
+	}
+
+	// Takes the winner of a block's sweep, null if the block was silent
+	private void result(final SynthRecoder.Candidate best, final BlockParams params)
+	{
+		params.count = 0;
+		if (best != null && best.step != 0)
+		{
+			params.shapes[0] = (byte) best.shape;
+			params.freqs[0] = best.freq;
+			params.steps[0] = best.step;
+			params.count = 1;
+		}
+	}
+
+	// Copies the block into a contiguous buffer that every shape reads from, then picks
+	// the best (shape, frequency, step), leaving params.count at 0 to keep it silent
+	private void search(final double[] source, final int start, final int[] ampSteps, final double[] block, final BlockParams params)
+	{
+		params.count = 0;
+		double minError = 0;
+		for (int j = 0; j < synthModRate; j++)
+		{
+			block[j] = source[start + j];
+			minError += Math.abs(block[j]);
+		}
+
+		if (isSilent(minError))
+		{
+			return;
+		}
+
+		final SynthRecoder.Candidate best = new SynthRecoder.Candidate(synthMinFreq, 0, minError);
+		sweep(block, synthMinFreq, synthMaxFreq, ampSteps, best);
+		result(best, params);
+	}
+
+	// One sweep through frequencies minFreq to maxFreq, scoring every shape against the
+	// same block, that replaces best with anything better
+	private void sweep(final double[] block, final int minFreq, final int maxFreq, final int[] ampSteps, final SynthRecoder.Candidate best)
+	{
+		for (int z = minFreq; z <= maxFreq; z++)
+		{
+			for (int k = 0; k < shapes.length; k++)
+			{
+				final SynthRecoder shape = shapes[k];
+				for (int a = 1; a <= ampSteps[k]; a++)
+				{
+					double e = shape.calcError(block, 0, z, a, ampSteps[k]);
+					if (e < best.error)
+					{
+						best.shape = k;
+						best.freq = z;
+						best.step = a;
+						best.error = e;
+					}
+
+					e = shape.calcError(block, 0, z, -a, ampSteps[k]);
+					if (e < best.error)
+					{
+						best.shape = k;
+						best.freq = z;
+						best.step = -a;
+						best.error = e;
+					}
+				}
+			}
+		}
+
+		if (stats != null && maxFreq >= minFreq)
+		{
+			long candidates = 0;
+			for (int k = 0; k < shapes.length; k++)
+			{
+				candidates += 2L * ampSteps[k] * (maxFreq - minFreq + 1);
+			}
+
+			stats.candidates.add(candidates);
+		}
+	}
+
+	SynthRecoder[] shapes()
+	{
+		return shapes;
+	}
+
+	// Log every block's result under this pass number, and replay blocks a previous
+	// run already logged
+	public void setCheckpoint(final Checkpoint checkpoint, final int pass)
+	{
+		this.checkpoint = checkpoint;
+		this.pass = pass;
+	}
+
+	// Report every recode as a pass, as SynthRecoder.setProfile does
+	public void setProfile(final Profile profile)
+	{
+		this.profile = profile;
+	}
+}
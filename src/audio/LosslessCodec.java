@@ -0,0 +1,418 @@
+package audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+// Lossless compression of integer PCM, along the lines of FLAC: every frame of
+// every channel picks the fixed polynomial predictor of order 0 to 4 that leaves
+// the smallest residual, and the residuals are Rice coded. A stereo frame can store
+// right - left instead of right. Frames don't depend on each other, so they're
+// encoded and decoded in parallel. Layout, little endian:
+// "WVLC", version, rate, channels, bits, samples, frame size, frame count, the byte
+// length of every frame, then the frames. Each frame is bit-packed as a stereo mode
+// bit when stereo, then per channel: predictor order, Rice parameter, the first
+// order samples and the Rice coded residuals
+public class LosslessCodec
+{
+	class FrameThread implements Runnable
+	{
+		int beginFrame;
+		int endFrame;
+		boolean decode;
+
+		public FrameThread(final int beginFrame, final int endFrame, final boolean decode)
+		{
+			this.beginFrame = beginFrame;
+			this.endFrame = endFrame;
+			this.decode = decode;
+		}
+
+		@Override
+		public void run()
+		{
+			for (int f = beginFrame; f < endFrame; f++)
+			{
+				if (decode)
+				{
+					decodeFrame(f);
+				}
+				else
+				{
+					encodeFrame(f);
+				}
+			}
+		}
+	}
+
+	static final int MAGIC = 0x434c5657; // WVLC
+	private static final byte VERSION = 1;
+	private static final int FRAME_SIZE = 4096;
+	private static final int MAX_ORDER = 4;
+	private static final int ORDER_BITS = 3;
+	private static final int RICE_BITS = 6;
+	// Quotients this long are stored as a plain number instead
+	private static final int ESCAPE = 32;
+	private static final int ESCAPE_BITS = 6;
+
+	private final int rate;
+	private final int bits;
+	private final int samples;
+	private final int frameSize;
+	private final int[][] data;
+	private final byte[][] frames;
+	private byte[] encoded;
+	private int[] frameOffsets;
+
+	private LosslessCodec(final int rate, final int bits, final int samples, final int frameSize, final int[][] data)
+	{
+		this.rate = rate;
+		this.bits = bits;
+		this.samples = samples;
+		this.frameSize = frameSize;
+		this.data = data;
+		frames = new byte[(samples + frameSize - 1) / frameSize][];
+	}
+
+	// data holds the signed samples of each channel, 8 bit samples minus 128
+	public static byte[] encode(final int rate, final int bits, final int[][] data, final int numThreads) throws Exception
+	{
+		if (bits != 8 && bits != 16 && bits != 32)
+		{
+			throw new Exception("Only 8, 16 and 32 bit samples can be compressed");
+		}
+
+		final LosslessCodec codec = new LosslessCodec(rate, bits, data[0].length, FRAME_SIZE, data);
+		codec.run(numThreads, false);
+
+		int size = 23 + 4 * codec.frames.length;
+		for (final byte[] frame : codec.frames)
+		{
+			size += frame.length;
+		}
+
+		final ByteBuffer bb = ByteBuffer.allocate(size);
+		bb.order(ByteOrder.LITTLE_ENDIAN);
+		bb.putInt(MAGIC);
+		bb.put(VERSION);
+		bb.putInt(rate);
+		bb.put((byte) data.length);
+		bb.put((byte) bits);
+		bb.putInt(codec.samples);
+		bb.putInt(codec.frameSize);
+		bb.putInt(codec.frames.length);
+		for (final byte[] frame : codec.frames)
+		{
+			bb.putInt(frame.length);
+		}
+
+		for (final byte[] frame : codec.frames)
+		{
+			bb.put(frame);
+		}
+
+		return bb.array();
+	}
+
+	public static boolean isEncoded(final byte[] data)
+	{
+		return data.length >= 4 && ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).getInt() == MAGIC;
+	}
+
+	// Converts to the same values WaveDecoder gives for the uncompressed file
+	public static WaveData decode(final byte[] encoded, final int numThreads) throws Exception
+	{
+		final ByteBuffer bb = ByteBuffer.wrap(encoded);
+		bb.order(ByteOrder.LITTLE_ENDIAN);
+		if (bb.getInt() != MAGIC)
+		{
+			throw new Exception("File is not a compressed wav file");
+		}
+
+		if (bb.get() != VERSION)
+		{
+			throw new Exception("Unsupported compressed wav file version");
+		}
+
+		final int rate = bb.getInt();
+		final int channels = bb.get();
+		final int bits = bb.get();
+		final int samples = bb.getInt();
+		final int frameSize = bb.getInt();
+		final int numFrames = bb.getInt();
+		if (channels != 1 && channels != 2 || bits != 8 && bits != 16 && bits != 32 || frameSize <= 0 || numFrames != (samples + frameSize - 1) / frameSize)
+		{
+			throw new Exception("File is corrupted");
+		}
+
+		final LosslessCodec codec = new LosslessCodec(rate, bits, samples, frameSize, new int[channels][samples]);
+		codec.encoded = encoded;
+		codec.frameOffsets = new int[numFrames];
+		int offset = bb.position() + 4 * numFrames;
+		for (int f = 0; f < numFrames; f++)
+		{
+			codec.frameOffsets[f] = offset;
+			offset += bb.getInt();
+		}
+
+		if (offset != encoded.length)
+		{
+			throw new Exception("File is corrupted");
+		}
+
+		codec.run(numThreads, true);
+
+		final double[][] out = new double[channels][samples];
+		for (int c = 0; c < channels; c++)
+		{
+			final int[] in = codec.data[c];
+			for (int i = 0; i < samples; i++)
+			{
+				if (bits == 8)
+				{
+					out[c][i] = (in[i] + 128) * 1.0 / 127.5 - 1.0;
+				}
+				else if (bits == 16)
+				{
+					out[c][i] = in[i] / 32768.0;
+				}
+				else
+				{
+					out[c][i] = in[i] / 2147483648.0;
+				}
+			}
+		}
+
+		final WaveData retval = channels == 2 ? new WaveData(out[0], out[1], rate) : new WaveData(out[0], rate);
+		retval.setSrcBits(bits);
+		return retval;
+	}
+
+	private static long predict(final long[] x, final int i, final int order)
+	{
+		if (order == 0)
+		{
+			return 0;
+		}
+
+		if (order == 1)
+		{
+			return x[i - 1];
+		}
+
+		if (order == 2)
+		{
+			return 2 * x[i - 1] - x[i - 2];
+		}
+
+		if (order == 3)
+		{
+			return 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+		}
+
+		return 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+	}
+
+	private static long zigzag(final long val)
+	{
+		return (val << 1) ^ (val >> 63);
+	}
+
+	private static long unzigzag(final long val)
+	{
+		return (val >>> 1) ^ -(val & 1);
+	}
+
+	private static long riceBits(final long u, final int k)
+	{
+		final long q = u >>> k;
+		if (q >= ESCAPE)
+		{
+			return ESCAPE + ESCAPE_BITS + BitWriter.bitsFor(u);
+		}
+
+		return q + 1 + k;
+	}
+
+	// Finds the cheapest predictor order and Rice parameter for one channel of a
+	// frame. Returns the cost in bits and fills choice with order and parameter
+	private long choose(final long[] x, final int n, final int[] choice)
+	{
+		long best = Long.MAX_VALUE;
+		final long[] u = new long[n];
+		for (int order = 0; order <= Math.min(MAX_ORDER, n); order++)
+		{
+			long sum = 0;
+			for (int i = order; i < n; i++)
+			{
+				u[i] = zigzag(x[i] - predict(x, i, order));
+				sum += u[i];
+			}
+
+			// The best parameter is close to log2 of the mean, so only its neighbours are
+			// costed exactly
+			final int estimate = n > order ? BitWriter.bitsFor(sum / (n - order)) : 0;
+			for (int k = Math.max(estimate - 1, 0); k <= Math.min(estimate + 1, (1 << RICE_BITS) - 1); k++)
+			{
+				long cost = (long) order * (bits + 1);
+				for (int i = order; i < n && cost < best; i++)
+				{
+					cost += riceBits(u[i], k);
+				}
+
+				if (cost < best)
+				{
+					best = cost;
+					choice[0] = order;
+					choice[1] = k;
+				}
+			}
+		}
+
+		return best;
+	}
+
+	private void decodeFrame(final int f)
+	{
+		final int start = f * frameSize;
+		final int n = Math.min(frameSize, samples - start);
+		final BitReader in = new BitReader(encoded, frameOffsets[f]);
+		final boolean side = data.length == 2 && in.read(1) == 1;
+		final long[] x = new long[n];
+		final long[] left = new long[n];
+		for (int c = 0; c < data.length; c++)
+		{
+			final int order = (int) in.read(ORDER_BITS);
+			final int k = (int) in.read(RICE_BITS);
+			for (int i = 0; i < order; i++)
+			{
+				x[i] = unzigzag(in.read(bits + 1));
+			}
+
+			for (int i = order; i < n; i++)
+			{
+				long u;
+				final int q = in.readUnary(ESCAPE);
+				if (q == ESCAPE)
+				{
+					u = in.read((int) in.read(ESCAPE_BITS));
+				}
+				else
+				{
+					u = ((long) q << k) | in.read(k);
+				}
+
+				x[i] = unzigzag(u) + predict(x, i, order);
+			}
+
+			for (int i = 0; i < n; i++)
+			{
+				data[c][start + i] = (int) (c == 1 && side ? x[i] + left[i] : x[i]);
+				left[i] = x[i];
+			}
+		}
+	}
+
+	private void encodeFrame(final int f)
+	{
+		final int start = f * frameSize;
+		final int n = Math.min(frameSize, samples - start);
+		final long[][] x = new long[data.length][n];
+		for (int c = 0; c < data.length; c++)
+		{
+			for (int i = 0; i < n; i++)
+			{
+				x[c][i] = data[c][start + i];
+			}
+		}
+
+		final int[][] choices = new int[data.length + 1][2];
+		final long[] costs = new long[data.length];
+		for (int c = 0; c < data.length; c++)
+		{
+			costs[c] = choose(x[c], n, choices[c]);
+		}
+
+		// Right - left is much smaller than right when the channels are similar
+		final BitWriter out = new BitWriter();
+		if (data.length == 2)
+		{
+			final long[] side = new long[n];
+			for (int i = 0; i < n; i++)
+			{
+				side[i] = x[1][i] - x[0][i];
+			}
+
+			if (choose(side, n, choices[2]) < costs[1])
+			{
+				x[1] = side;
+				choices[1] = choices[2];
+				out.write(1, 1);
+			}
+			else
+			{
+				out.write(0, 1);
+			}
+		}
+
+		for (int c = 0; c < data.length; c++)
+		{
+			final int order = choices[c][0];
+			final int k = choices[c][1];
+			out.write(order, ORDER_BITS);
+			out.write(k, RICE_BITS);
+			for (int i = 0; i < order; i++)
+			{
+				out.write(zigzag(x[c][i]), bits + 1);
+			}
+
+			for (int i = order; i < n; i++)
+			{
+				final long u = zigzag(x[c][i] - predict(x[c], i, order));
+				final long q = u >>> k;
+				if (q >= ESCAPE)
+				{
+					final int width = BitWriter.bitsFor(u);
+					out.write((1L << ESCAPE) - 1, ESCAPE);
+					out.write(width, ESCAPE_BITS);
+					out.write(u, width);
+				}
+				else
+				{
+					// q 1 bits and a 0, then the low k bits
+					out.write(((1L << q) - 1) << 1, (int) q + 1);
+					out.write(u & ((1L << k) - 1), k);
+				}
+			}
+		}
+
+		frames[f] = out.toByteArray();
+	}
+
+	private void run(final int numThreads, final boolean decode)
+	{
+		final ArrayList<Thread> threads = new ArrayList<>();
+		final int perThread = Math.max((frames.length + numThreads - 1) / numThreads, 1);
+		for (int f = 0; f < frames.length; f += perThread)
+		{
+			final Thread thread = new Thread(new FrameThread(f, Math.min(f + perThread, frames.length), decode));
+			thread.start();
+			threads.add(thread);
+		}
+
+		for (final Thread thread : threads)
+		{
+			while (true)
+			{
+				try
+				{
+					thread.join();
+					break;
+				}
+				catch (final Exception e)
+				{
+				}
+			}
+		}
+	}
+}
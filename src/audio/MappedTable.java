@@ -0,0 +1,50 @@
+package audio;
+
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+
+// The full table mapped from the table cache, one flat slab per frequency. It's
+// built and written there first if no earlier run did
+class MappedTable extends SynthTable
+{
+	private final DoubleBuffer[] slabs;
+
+	MappedTable(final SynthRecoder coder, final TableCache cache, final int minFreq, final int maxFreq, final int rate, final int threads) throws IOException
+	{
+		super(minFreq, maxFreq, coder.synthModRate);
+		final int rows = coder.ampSteps() * 2;
+		final int[] settings = { coder.shape(), coder.channelBits, synthModRate, minFreq, maxFreq, rate };
+		final String name = coder.getClass().getSimpleName().replace("Recoder", "").toLowerCase();
+		slabs = cache.table(name, settings, maxFreq - minFreq + 1, rows * synthModRate, cached ->
+		{
+			minSum = coder.fillRows(minFreq, maxFreq, rate, threads, (z, a, row) ->
+			{
+				final DoubleBuffer slab = cached[z - minFreq];
+				for (int s = 0; s < synthModRate; s++)
+				{
+					slab.put(a * synthModRate + s, row[s]);
+				}
+			});
+		});
+	}
+
+	@Override
+	double get(final int f, final int row, final int s)
+	{
+		return slabs[f - minFreq].get(row * synthModRate + s);
+	}
+
+	@Override
+	double error(final double[] data, final int start, final int f, final int row)
+	{
+		final DoubleBuffer slab = slabs[f - minFreq];
+		final int offset = row * synthModRate - start;
+		double error = 0;
+		for (int i = start; i < start + synthModRate; i++)
+		{
+			error += Math.abs(data[i] - slab.get(offset + i));
+		}
+
+		return error;
+	}
+}
@@ -0,0 +1,256 @@
+package audio;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+// The oscillator parameters of every synth pass, instead of the PCM they render to.
+// Layout, little endian:
+// "SYNP", version, rate, samples, channels, block size, min freq, max freq, passes
+// then per pass: shape count, (shape, bits) per shape, max oscillators per block,
+// byte count of the packed blocks and the blocks themselves. Each block is
+// bit-packed as an oscillator count followed by (shape index, frequency - min
+// freq, step + amp steps) per oscillator, channel 1 first
+public class ParameterStream
+{
+	static class Pass
+	{
+		int[] shapes;
+		int[] bits;
+		int maxOscillators;
+		BlockParams[][] params;
+	}
+
+	private static final int MAGIC = 0x504e5953; // SYNP
+	private static final byte VERSION = 1;
+
+	private final int rate;
+	private final int samples;
+	private final boolean stereo;
+	private final int blockSize;
+	private final int minFreq;
+	private final int maxFreq;
+	final ArrayList<Pass> passes = new ArrayList<>();
+
+	public ParameterStream(final int rate, final int samples, final boolean stereo, final int blockSize, final int minFreq, final int maxFreq)
+	{
+		this.rate = rate;
+		this.samples = samples;
+		this.stereo = stereo;
+		this.blockSize = blockSize;
+		this.minFreq = minFreq;
+		this.maxFreq = maxFreq;
+	}
+
+	static int ampSteps(final int bits)
+	{
+		return (int) Math.round((Math.pow(2.0, bits) - 2) / 2);
+	}
+
+	public static ParameterStream read(final String filename) throws Exception
+	{
+		final InputStream inputStream = new FileInputStream(filename);
+		final byte[] allBytes = new byte[(int) new File(filename).length()];
+		int pos = 0;
+		while (pos < allBytes.length)
+		{
+			pos += inputStream.read(allBytes, pos, allBytes.length - pos);
+		}
+
+		inputStream.close();
+
+		final ByteBuffer bb = ByteBuffer.wrap(allBytes);
+		bb.order(ByteOrder.LITTLE_ENDIAN);
+		if (bb.getInt() != MAGIC)
+		{
+			throw new Exception("File is not a synth parameter file");
+		}
+
+		if (bb.get() != VERSION)
+		{
+			throw new Exception("Unsupported synth parameter file version");
+		}
+
+		final int rate = bb.getInt();
+		final int samples = bb.getInt();
+		final boolean stereo = bb.get() == 2;
+		final int blockSize = bb.getInt();
+		final int minFreq = bb.getInt();
+		final int maxFreq = bb.getInt();
+		final ParameterStream retval = new ParameterStream(rate, samples, stereo, blockSize, minFreq, maxFreq);
+
+		final int numPasses = bb.getInt();
+		final int channels = stereo ? 2 : 1;
+		final int numBlocks = samples / blockSize;
+		for (int p = 0; p < numPasses; p++)
+		{
+			final Pass pass = new Pass();
+			final int numShapes = bb.get();
+			pass.shapes = new int[numShapes];
+			pass.bits = new int[numShapes];
+			for (int k = 0; k < numShapes; k++)
+			{
+				pass.shapes[k] = bb.get();
+				pass.bits[k] = bb.get();
+			}
+
+			pass.maxOscillators = bb.get() & 0xff;
+			final int length = bb.getInt();
+			final BitReader in = new BitReader(allBytes, bb.position());
+			final int countBits = BitWriter.bitsFor(pass.maxOscillators);
+			final int shapeBits = BitWriter.bitsFor(numShapes - 1);
+			final int freqBits = BitWriter.bitsFor(maxFreq - minFreq);
+			pass.params = new BlockParams[channels][numBlocks];
+			for (int c = 0; c < channels; c++)
+			{
+				for (int b = 0; b < numBlocks; b++)
+				{
+					final BlockParams params = new BlockParams((int) in.read(countBits));
+					params.count = params.freqs.length;
+					for (int k = 0; k < params.count; k++)
+					{
+						params.shapes[k] = (byte) in.read(shapeBits);
+						final int ampSteps = ampSteps(pass.bits[params.shapes[k]]);
+						params.freqs[k] = (int) in.read(freqBits) + minFreq;
+						params.steps[k] = (int) in.read(BitWriter.bitsFor(2 * ampSteps)) - ampSteps;
+					}
+
+					pass.params[c][b] = params;
+				}
+			}
+
+			bb.position(bb.position() + length);
+			retval.passes.add(pass);
+		}
+
+		return retval;
+	}
+
+	public void addPass(final JointRecoder coder)
+	{
+		final SynthRecoder[] shapes = coder.shapes();
+		final Pass pass = new Pass();
+		pass.shapes = new int[shapes.length];
+		pass.bits = new int[shapes.length];
+		for (int k = 0; k < shapes.length; k++)
+		{
+			pass.shapes[k] = shapes[k].shape();
+			pass.bits[k] = shapes[k].channelBits;
+		}
+
+		pass.maxOscillators = 1;
+		pass.params = coder.params();
+		passes.add(pass);
+	}
+
+	public void addPass(final SynthRecoder coder)
+	{
+		final Pass pass = new Pass();
+		pass.shapes = new int[] { coder.shape() };
+		pass.bits = new int[] { coder.channelBits };
+		pass.maxOscillators = coder.oscillators();
+		pass.params = coder.params();
+		passes.add(pass);
+	}
+
+	public int blockSize()
+	{
+		return blockSize;
+	}
+
+	public int maxFreq()
+	{
+		return maxFreq;
+	}
+
+	public int minFreq()
+	{
+		return minFreq;
+	}
+
+	public int rate()
+	{
+		return rate;
+	}
+
+	public int samples()
+	{
+		return samples;
+	}
+
+	public boolean stereo()
+	{
+		return stereo;
+	}
+
+	public void write(final String filename) throws Exception
+	{
+		final ByteBuffer header = ByteBuffer.allocate(30);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.put(VERSION);
+		header.putInt(rate);
+		header.putInt(samples);
+		header.put((byte) (stereo ? 2 : 1));
+		header.putInt(blockSize);
+		header.putInt(minFreq);
+		header.putInt(maxFreq);
+		header.putInt(passes.size());
+
+		final OutputStream outputStream = new FileOutputStream(filename);
+		outputStream.write(header.array());
+
+		final int numBlocks = samples / blockSize;
+		final int freqBits = BitWriter.bitsFor(maxFreq - minFreq);
+		for (final Pass pass : passes)
+		{
+			final BitWriter out = new BitWriter();
+			final int countBits = BitWriter.bitsFor(pass.maxOscillators);
+			final int shapeBits = BitWriter.bitsFor(pass.shapes.length - 1);
+			for (final BlockParams[] channel : pass.params)
+			{
+				for (int b = 0; b < numBlocks; b++)
+				{
+					// Blocks a recoder never reached were left silent
+					final BlockParams params = b < channel.length ? channel[b] : null;
+					if (params == null)
+					{
+						out.write(0, countBits);
+						continue;
+					}
+
+					out.write(params.count, countBits);
+					for (int k = 0; k < params.count; k++)
+					{
+						final int ampSteps = ampSteps(pass.bits[params.shapes[k]]);
+						out.write(params.shapes[k], shapeBits);
+						out.write(params.freqs[k] - minFreq, freqBits);
+						out.write(params.steps[k] + ampSteps, BitWriter.bitsFor(2 * ampSteps));
+					}
+				}
+			}
+
+			final byte[] packed = out.toByteArray();
+			final ByteBuffer passHeader = ByteBuffer.allocate(2 + 2 * pass.shapes.length + 4);
+			passHeader.order(ByteOrder.LITTLE_ENDIAN);
+			passHeader.put((byte) pass.shapes.length);
+			for (int k = 0; k < pass.shapes.length; k++)
+			{
+				passHeader.put((byte) pass.shapes[k]);
+				passHeader.put((byte) pass.bits[k]);
+			}
+
+			passHeader.put((byte) pass.maxOscillators);
+			passHeader.putInt(packed.length);
+			outputStream.write(passHeader.array());
+			outputStream.write(packed);
+		}
+
+		outputStream.close();
+	}
+}
@@ -0,0 +1,226 @@
+package audio;
+
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// Where the time of a DPCM run goes. Every pipeline stage and every synth pass is a
+// Java Flight Recorder event, so java -XX:StartFlightRecording=filename=run.jfr
+// records them alongside the JVM's own. They cost next to nothing when no recording
+// is running. Given a file, the same timings are also written there as JSON when
+// the run ends
+public class Profile
+{
+	@Name("audio.Stage")
+	@Label("Pipeline Stage")
+	@Category("Audio")
+	static class StageEvent extends Event
+	{
+		@Label("Stage")
+		String stage;
+
+		@Label("Samples")
+		long samples;
+	}
+
+	@Name("audio.RecoderPass")
+	@Label("Recoder Pass")
+	@Category("Audio")
+	static class PassEvent extends Event
+	{
+		@Label("Recoder")
+		String recoder;
+
+		@Label("Pass")
+		int pass;
+
+		@Label("Table Build Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long tableBuild;
+
+		@Label("Blocks Searched")
+		long blocksSearched;
+
+		@Label("Candidates Evaluated")
+		long candidates;
+
+		@Label("Bytes Allocated")
+		@DataAmount
+		long allocated;
+	}
+
+	static class Stage
+	{
+		StageEvent event;
+		long start;
+	}
+
+	// Counters a recoder adds to while a pass runs, from any of its threads
+	static class Pass
+	{
+		PassEvent event;
+		long start;
+		long tableBuild;
+		final LongAdder blocksSearched = new LongAdder();
+		final LongAdder candidates = new LongAdder();
+		final LongAdder allocated = new LongAdder();
+	}
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private final String filename;
+	private final long start = System.nanoTime();
+	private final ArrayList<String> stages = new ArrayList<>();
+	private final ArrayList<String> passes = new ArrayList<>();
+	private final LinkedHashMap<String, long[]> totals = new LinkedHashMap<>();
+
+	// filename may be null for events only
+	public Profile(final String filename)
+	{
+		this.filename = filename;
+	}
+
+	// Bytes the calling thread has allocated so far, or 0 if the JVM can't tell
+	static long allocatedBytes()
+	{
+		if (THREADS instanceof com.sun.management.ThreadMXBean)
+		{
+			return Math.max(((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId()), 0);
+		}
+
+		return 0;
+	}
+
+	public Stage begin(final String name)
+	{
+		final Stage retval = new Stage();
+		retval.event = new StageEvent();
+		retval.event.stage = name;
+		retval.event.begin();
+		retval.start = System.nanoTime();
+		return retval;
+	}
+
+	// Returns null, and recoders skip their counting, when neither a recording nor
+	// the summary would see the result
+	Pass beginPass(final String recoder, final int pass)
+	{
+		final PassEvent event = new PassEvent();
+		if (filename == null && !event.isEnabled())
+		{
+			return null;
+		}
+
+		final Pass retval = new Pass();
+		retval.event = event;
+		retval.event.recoder = recoder;
+		retval.event.pass = pass;
+		retval.event.begin();
+		retval.start = System.nanoTime();
+		return retval;
+	}
+
+	public void end(final Stage stage, final long samples)
+	{
+		final long nanos = System.nanoTime() - stage.start;
+		stage.event.end();
+		if (stage.event.shouldCommit())
+		{
+			stage.event.samples = samples;
+			stage.event.commit();
+		}
+
+		synchronized (totals)
+		{
+			final long[] total = totals.computeIfAbsent(stage.event.stage, name -> new long[2]);
+			total[0] += nanos;
+			total[1] += samples;
+		}
+
+		if (filename != null)
+		{
+			synchronized (stages)
+			{
+				stages.add("{\"name\": \"" + stage.event.stage + "\", \"millis\": " + nanos / 1e6 + ", \"samples\": " + samples + "}");
+			}
+		}
+	}
+
+	void endPass(final Pass pass)
+	{
+		final long nanos = System.nanoTime() - pass.start;
+		final PassEvent event = pass.event;
+		event.end();
+		event.tableBuild = pass.tableBuild;
+		event.blocksSearched = pass.blocksSearched.sum();
+		event.candidates = pass.candidates.sum();
+		event.allocated = pass.allocated.sum();
+		if (event.shouldCommit())
+		{
+			event.commit();
+		}
+
+		if (filename != null)
+		{
+			final StringBuilder sb = new StringBuilder();
+			sb.append("{\"recoder\": \"").append(event.recoder).append("\", \"pass\": ").append(event.pass);
+			sb.append(", \"millis\": ").append(nanos / 1e6).append(", \"tableBuildMillis\": ").append(event.tableBuild / 1e6);
+			sb.append(", \"blocksSearched\": ").append(event.blocksSearched).append(", \"candidates\": ").append(event.candidates);
+			sb.append(", \"allocatedBytes\": ").append(event.allocated).append('}');
+			synchronized (passes)
+			{
+				passes.add(sb.toString());
+			}
+		}
+	}
+
+	// Nanoseconds and samples of every stage so far, summed over the stages with the
+	// same name, in the order each name first ended
+	public LinkedHashMap<String, long[]> stageTotals()
+	{
+		synchronized (totals)
+		{
+			final LinkedHashMap<String, long[]> retval = new LinkedHashMap<>();
+			totals.forEach((name, total) -> retval.put(name, total.clone()));
+			return retval;
+		}
+	}
+
+	// Writes the JSON summary, if there's a file for it
+	public void write() throws Exception
+	{
+		if (filename == null)
+		{
+			return;
+		}
+
+		final StringBuilder sb = new StringBuilder("{\n  \"totalMillis\": ").append((System.nanoTime() - start) / 1e6).append(",\n  \"stages\": [");
+		for (int i = 0; i < stages.size(); i++)
+		{
+			sb.append(i > 0 ? "," : "").append("\n    ").append(stages.get(i));
+		}
+
+		sb.append("\n  ],\n  \"passes\": [");
+		for (int i = 0; i < passes.size(); i++)
+		{
+			sb.append(i > 0 ? "," : "").append("\n    ").append(passes.get(i));
+		}
+
+		sb.append("\n  ]\n}\n");
+		final OutputStream outputStream = new FileOutputStream(filename);
+		outputStream.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+		outputStream.close();
+	}
+}
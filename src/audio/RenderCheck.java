@@ -0,0 +1,116 @@
+package audio;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Checks that SynthRenderer reproduces the recoders sample for sample. Without
+// arguments every oscillator of every shape, from 22 Hz to half the rate at 16, 32
+// and 44.1 kHz, is rendered and compared with the recoder's table, which covers the
+// frequencies that divide the rate. Given a parameter file and the outputFile of the
+// same DPCM run, and the residual if the run had one, the whole render is compared
+// with the output
+public class RenderCheck
+{
+	private static final int[] RATES = { 16000, 32000, 44100 };
+	private static final int[] SHAPES = { SynthRecoder.SQUARE, SynthRecoder.SAWTOOTH, SynthRecoder.SINE, SynthRecoder.TRIANGLE };
+	private static final String[] SHAPE_NAMES = { "square", "sawtooth", "sine", "triangle" };
+	private static final int BITS = 5;
+	private static final int BLOCK_SIZE = 128;
+	private static final int MIN_FREQ = 22;
+	// Frequencies per table built, to keep the table small
+	private static final int CHUNK_FREQS = 256;
+
+	public static void main(final String[] args) throws Exception
+	{
+		final long mismatches = args.length >= 2 ? checkFile(args) : checkTables();
+		System.out.println(mismatches == 0 ? "The render matches" : mismatches + " samples differ");
+		System.exit(mismatches == 0 ? 0 : 1);
+	}
+
+	private static long checkTables()
+	{
+		long retval = 0;
+		for (final int rate : RATES)
+		{
+			for (final int shape : SHAPES)
+			{
+				long mismatches = 0;
+				final double[] rendered = new double[BLOCK_SIZE];
+				for (int first = MIN_FREQ; first <= rate / 2; first += CHUNK_FREQS)
+				{
+					final int last = Math.min(first + CHUNK_FREQS - 1, rate / 2);
+					final SynthRecoder coder = SynthRecoder.create(shape, BITS, BLOCK_SIZE, first, last, new AtomicInteger(), 0, 1);
+					final double[][] values = SynthRenderer.shapeValues(coder, rate);
+					final SynthRecoder table = SynthRecoder.create(shape, BITS, BLOCK_SIZE, first, last, new AtomicInteger(), 0, 1);
+					table.buildLookup(rate);
+					final int ampSteps = table.ampSteps();
+					for (int f = first; f <= last; f++)
+					{
+						for (int step = -ampSteps; step <= ampSteps; step++)
+						{
+							Arrays.fill(rendered, 0);
+							SynthRenderer.renderOscillator(rendered, 0, coder, values[f - first], step);
+							for (int s = 0; s < BLOCK_SIZE; s++)
+							{
+								if (rendered[s] != table.getLookup(f, step, s, ampSteps))
+								{
+									++mismatches;
+								}
+							}
+						}
+					}
+				}
+
+				System.out.println(SHAPE_NAMES[shape] + " at " + rate + " Hz: " + mismatches + " samples differ");
+				retval += mismatches;
+			}
+		}
+
+		return retval;
+	}
+
+	// args are the parameter file, the output file and optionally the residual
+	private static long checkFile(final String[] args) throws Exception
+	{
+		final ParameterStream params = ParameterStream.read(args[0]);
+		final WaveData expected = WaveDecoder.decode(args[1]);
+		WaveData residual = null;
+		if (args.length > 2)
+		{
+			residual = DPCMStream.isStream(args[2]) ? DPCMStream.read(args[2]).decode() : WaveDecoder.decode(args[2]);
+		}
+
+		final File rendered = File.createTempFile("render", ".wav");
+		try
+		{
+			new SynthRenderer(params, 1).render(residual, new WaveEncoder((byte) expected.srcBits(), rendered.getPath()));
+			final WaveData actual = WaveDecoder.decode(rendered.getPath());
+			if (actual.samples() != expected.samples() || actual.stereo() != expected.stereo())
+			{
+				System.out.println("The render has " + actual.samples() + " samples, the output " + expected.samples());
+				return Math.max(actual.samples(), expected.samples());
+			}
+
+			long retval = 0;
+			for (int c = 0; c < (expected.stereo() ? 2 : 1); c++)
+			{
+				final double[] a = c == 0 ? actual.channel1() : actual.channel2();
+				final double[] e = c == 0 ? expected.channel1() : expected.channel2();
+				for (int i = 0; i < e.length; i++)
+				{
+					if (a[i] != e[i])
+					{
+						++retval;
+					}
+				}
+			}
+
+			return retval;
+		}
+		finally
+		{
+			rendered.delete();
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package audio;
+
+import java.util.Arrays;
+
+// The full table, or a shard of it, as doubles with one slab per frequency, in the
+// flat or the transposed layout
+class SlabTable extends SynthTable
+{
+	// Rows the transposed kernel keeps running errors for at once, small enough for
+	// them to stay in L1 cache
+	private static final int ROW_BLOCK = 512;
+
+	private final double[][] slabs;
+	private final boolean transposed;
+	private final int rows;
+
+	SlabTable(final SynthRecoder coder, final int minFreq, final int maxFreq, final int rate, final int threads, final boolean transposed)
+	{
+		super(minFreq, maxFreq, coder.synthModRate);
+		this.transposed = transposed;
+		rows = coder.ampSteps() * 2;
+		final double[][] slabs = new double[maxFreq - minFreq + 1][rows * synthModRate];
+		this.slabs = slabs;
+		minSum = coder.fillRows(minFreq, maxFreq, rate, threads, (z, a, row) ->
+		{
+			final double[] slab = slabs[z - minFreq];
+			for (int s = 0; s < synthModRate; s++)
+			{
+				slab[index(a, s)] = row[s];
+			}
+		});
+	}
+
+	// Where sample s of a row is in its slab
+	private int index(final int row, final int s)
+	{
+		if (transposed)
+		{
+			return s * rows + row;
+		}
+
+		return row * synthModRate + s;
+	}
+
+	@Override
+	double get(final int f, final int row, final int s)
+	{
+		return slabs[f - minFreq][index(row, s)];
+	}
+
+	@Override
+	double error(final double[] data, final int start, final int f, final int row)
+	{
+		final double[] slab = slabs[f - minFreq];
+		double error = 0;
+		if (transposed)
+		{
+			for (int i = start; i < start + synthModRate; i++)
+			{
+				error += Math.abs(data[i] - slab[(i - start) * rows + row]);
+			}
+		}
+		else
+		{
+			final int offset = row * synthModRate - start;
+			for (int i = start; i < start + synthModRate; i++)
+			{
+				error += Math.abs(data[i] - slab[offset + i]);
+			}
+		}
+
+		return error;
+	}
+
+	// The sweep over the transposed table. Every step of a frequency is scored in one
+	// pass over the block, so each sample is loaded once and compared against a
+	// contiguous run of rows. Each error is summed in the same order as error sums it,
+	// so the winner is the same as the plain sweep's. The screen isn't used, since all
+	// the steps are scored anyway
+	@Override
+	boolean sweep(final double[] source, final int start, final int lo, final int hi, final int ampSteps, final SynthRecoder.Candidate best)
+	{
+		if (!transposed)
+		{
+			return false;
+		}
+
+		final double[] errors = new double[rows];
+		for (int z = lo; z <= hi; z++)
+		{
+			final double[] slab = slabs[z - minFreq];
+			Arrays.fill(errors, 0);
+			for (int first = 0; first < rows; first += ROW_BLOCK)
+			{
+				final int last = Math.min(first + ROW_BLOCK, rows);
+
+				// Four samples at a time, added in order, so the running errors are loaded
+				// and stored a quarter as often
+				int s = 0;
+				for (; s + 4 <= synthModRate; s += 4)
+				{
+					final double s0 = source[start + s];
+					final double s1 = source[start + s + 1];
+					final double s2 = source[start + s + 2];
+					final double s3 = source[start + s + 3];
+					final int base = s * rows;
+					for (int a = first; a < last; a++)
+					{
+						double error = errors[a];
+						error += Math.abs(s0 - slab[base + a]);
+						error += Math.abs(s1 - slab[base + rows + a]);
+						error += Math.abs(s2 - slab[base + 2 * rows + a]);
+						error += Math.abs(s3 - slab[base + 3 * rows + a]);
+						errors[a] = error;
+					}
+				}
+
+				for (; s < synthModRate; s++)
+				{
+					final double sample = source[start + s];
+					final int base = s * rows;
+					for (int a = first; a < last; a++)
+					{
+						errors[a] += Math.abs(sample - slab[base + a]);
+					}
+				}
+			}
+
+			best.evaluated += rows;
+
+			// In the sweep's order of positive and negative amplitudes
+			for (int a = 1; a <= ampSteps; a++)
+			{
+				if (errors[a - 1] < best.error)
+				{
+					best.freq = z;
+					best.step = a;
+					best.error = errors[a - 1];
+				}
+
+				if (errors[ampSteps + a - 1] < best.error)
+				{
+					best.freq = z;
+					best.step = -a;
+					best.error = errors[ampSteps + a - 1];
+				}
+			}
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,1494 @@
+package audio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public abstract class SynthRecoder
+{
+	static final int SQUARE = 0;
+	static final int SAWTOOTH = 1;
+	static final int SINE = 2;
+	static final int TRIANGLE = 3;
+	static final int NUM_SHAPES = 4;
+	// Layouts of a table of doubles. jagged: an array per row, flat: one contiguous
+	// slab per frequency with each row in turn, transposed: the same slab with the
+	// rows interleaved, every row's first sample, then every row's second sample and
+	// so on
+	static final int JAGGED = 0;
+	static final int FLAT = 1;
+	static final int TRANSPOSED = 2;
+	static final String[] LAYOUTS = { "jagged", "flat", "transposed" };
+	private static final int MAX_GRAM_COLUMNS = 512;
+
+	static class Candidate
+	{
+		// Index into the shapes of a joint pass
+		int shape;
+		int freq;
+		int step;
+		double error;
+		// Candidates scored at full rate while looking for this one
+		int evaluated;
+
+		public Candidate(final int freq, final int step, final double error)
+		{
+			this.freq = freq;
+			this.step = step;
+			this.error = error;
+		}
+	}
+
+	// Searches a range of blocks without keeping the results, for timeSearch
+	class SearchThread implements Runnable
+	{
+		double[] source;
+		int beginBlock;
+		int endBlock;
+
+		public SearchThread(final double[] source, final int beginBlock, final int endBlock)
+		{
+			this.source = source;
+			this.beginBlock = beginBlock;
+			this.endBlock = endBlock;
+		}
+
+		@Override
+		public void run()
+		{
+			final int ampSteps = ampSteps();
+			final double[] screen = screenLookup == null ? null : new double[screenLookup[0][0].length];
+			final double[] correlations = pursuit == 0 ? null : new double[numFreqs()];
+			final double[] residual = pursuit == 0 ? null : new double[synthModRate];
+			final double[] rowBuffer = pursuit == 0 ? null : new double[synthModRate];
+			final BlockParams params = new BlockParams(Math.max(pursuit, 1));
+			int prevFreq = 0;
+			for (int b = beginBlock; b < endBlock; b++)
+			{
+				if (tableStrategy == TablePlanner.SHARDED)
+				{
+					final Candidate best = new Candidate(synthMinFreq, 0, Double.MAX_VALUE);
+					searchShard(source, b * synthModRate, ampSteps, screen, tableMinFreq, tableMaxFreq, best);
+					continue;
+				}
+
+				search(source, b * synthModRate, ampSteps, screen, correlations, residual, rowBuffer, prevFreq, params);
+				prevFreq = params.count == 1 ? params.freqs[0] : 0;
+			}
+		}
+	}
+
+	// Searches one channel's blocks over a frequency range of the table that is built,
+	// carrying each block's best candidate in bests on to the next shard
+	class ShardThread implements Runnable
+	{
+		double[] source;
+		int index;
+		int channel;
+		int minFreq;
+		int maxFreq;
+		Candidate[][] bests;
+
+		public ShardThread(final double[] source, final int index, final int channel, final int minFreq, final int maxFreq, final Candidate[][] bests)
+		{
+			this.source = source;
+			this.index = index;
+			this.channel = channel;
+			this.minFreq = minFreq;
+			this.maxFreq = maxFreq;
+			this.bests = bests;
+		}
+
+		@Override
+		public void run()
+		{
+			final int ampSteps = ampSteps();
+			final long channelBlocks = source.length / synthModRate;
+			final int beginI = (int) (channelBlocks * index / timeThreads) * synthModRate;
+			final int endI = (int) (channelBlocks * (index + 1) / timeThreads) * synthModRate;
+			final double[] screen = screenLookup == null ? null : new double[screenLookup[0][0].length];
+			for (int i = beginI; i + synthModRate <= endI; i += synthModRate)
+			{
+				final int block = i / synthModRate;
+				if (checkpoint != null && checkpoint.get(pass, channel, block) != null)
+				{
+					continue;
+				}
+
+				Candidate best = bests[channel][block];
+				if (best == null)
+				{
+					double blockError = 0;
+					for (int j = i; j < i + synthModRate; j++)
+					{
+						blockError += Math.abs(source[j]);
+					}
+
+					if (isSilent(blockError))
+					{
+						continue;
+					}
+
+					best = new Candidate(synthMinFreq, 0, blockError);
+					bests[channel][block] = best;
+				}
+
+				searchShard(source, i, ampSteps, screen, minFreq, maxFreq, best);
+			}
+		}
+	}
+
+	// Receives the rows of a table as they're computed. Each frequency's rows all
+	// come from the same thread, in order
+	interface RowFiller
+	{
+		void fill(int f, int row, double[] values);
+	}
+
+	// Computes the rows of a range of frequencies, each frequency's shape values once
+	// and every row scaled from them
+	class TableThread implements Runnable
+	{
+		int minFreq;
+		int maxFreq;
+		int rate;
+		RowFiller filler;
+		double minSum = Double.MAX_VALUE;
+		RuntimeException failure;
+
+		public TableThread(final int minFreq, final int maxFreq, final int rate, final RowFiller filler)
+		{
+			this.minFreq = minFreq;
+			this.maxFreq = maxFreq;
+			this.rate = rate;
+			this.filler = filler;
+		}
+
+		@Override
+		public void run()
+		{
+			final int rows = ampSteps() * 2;
+			final double[] values = new double[synthModRate];
+			final double[] row = new double[synthModRate];
+			try
+			{
+				for (int z = minFreq; z <= maxFreq; z++)
+				{
+					for (int s = 0; s < synthModRate; s++)
+					{
+						values[s] = shapeValue(z, s * 1.0 / rate);
+					}
+
+					for (int a = 0; a < rows; a++)
+					{
+						final double amplitude = amplitude(a);
+						double sum = 0;
+						for (int s = 0; s < synthModRate; s++)
+						{
+							row[s] = scale(amplitude, values[s]);
+							sum += Math.abs(row[s]);
+						}
+
+						if (sum > 0)
+						{
+							minSum = Math.min(minSum, sum);
+						}
+
+						if (filler != null)
+						{
+							filler.fill(z, a, row);
+						}
+					}
+				}
+			}
+			catch (final RuntimeException e)
+			{
+				failure = e;
+			}
+		}
+	}
+
+	class WorkThread implements Runnable
+	{
+		WaveData in;
+		double[] target;
+		double[] source;
+		AtomicInteger blocks;
+		int index;
+		int numBlocks;
+		int channel;
+
+		public WorkThread(final WaveData in, final double[] target, final double[] source, final AtomicInteger blocks, final int index, final int numBlocks, final int channel)
+		{
+			this.in = in;
+			this.target = target;
+			this.source = source;
+			this.blocks = blocks;
+			this.index = index;
+			this.numBlocks = numBlocks;
+			this.channel = channel;
+		}
+
+		@Override
+		public void run()
+		{
+			final int ampSteps = ampSteps();
+			final int numSamples = in.samples();
+			final long channelBlocks = numSamples / synthModRate;
+			final int beginI = (int) (channelBlocks * index / timeThreads) * synthModRate;
+			final int endI = (int) (channelBlocks * (index + 1) / timeThreads) * synthModRate;
+			double error = 0;
+			long samples = 0;
+			final double[] screen = screenLookup == null ? null : new double[screenLookup[0][0].length];
+			final double[] correlations = pursuit == 0 ? null : new double[numFreqs()];
+			final double[] residual = pursuit == 0 ? null : new double[synthModRate];
+			final double[] rowBuffer = pursuit == 0 ? null : new double[synthModRate];
+			final BlockParams searched = new BlockParams(Math.max(pursuit, 1));
+			final long allocatedStart = stats == null ? 0 : Profile.allocatedBytes();
+
+			// Winning frequency of the previous block, 0 if it was left silent
+			int prevFreq = 0;
+
+			for (int i = beginI; i + synthModRate <= endI; i += synthModRate)
+			{
+				final int block = i / synthModRate;
+				BlockParams params = checkpoint == null ? null : checkpoint.get(pass, channel, block);
+				if (params == null)
+				{
+					params = searched;
+					if (partBests != null)
+					{
+						shardResult(bestPart(channel, block), params);
+					}
+					else
+					{
+						search(source, i, ampSteps, screen, correlations, residual, rowBuffer, prevFreq, params);
+					}
+
+					if (stats != null)
+					{
+						stats.blocksSearched.increment();
+					}
+
+					if (checkpoint != null)
+					{
+						checkpoint.record(pass, channel, block, params);
+					}
+				}
+
+				results[channel][block] = params == searched ? params.copy() : params;
+				prevFreq = params.count == 1 ? params.freqs[0] : 0;
+
+				// Generate the data based on best fit for this block
+				for (int j = i; j < i + synthModRate; j++)
+				{
+					target[j] = 0;
+					for (int k = 0; k < params.count; k++)
+					{
+						target[j] += getLookup(params.freqs[k], params.steps[k], j - i, ampSteps);
+					}
+
+					error += Math.abs(target[j] - source[j]);
+					++samples;
+				}
+
+				final int count = blocks.addAndGet(Math.max(pursuit, 1));
+				System.out.println(count + "/" + numBlocks);
+			}
+
+			addError(error, samples);
+			if (stats != null)
+			{
+				stats.allocated.add(Profile.allocatedBytes() - allocatedStart);
+			}
+		}
+	}
+
+	final int channelBits;
+	// Distance between the levels quantize rounds to
+	final double quantum;
+	final int synthModRate;
+	final int synthMinFreq;
+	final int synthMaxFreq;
+	volatile double sumAbsoluteError = 0.0;
+	AtomicLong count = new AtomicLong(0);
+	// The whole table, or the shard being searched, and the table of the entries
+	// computed as they're needed that stands in for every frequency outside it
+	private SynthTable table;
+	private SynthTable waves;
+	private TableCache tableCache;
+	private int tableLayout = JAGGED;
+	private int builtLayout;
+	private int tableStrategy = TablePlanner.FULL;
+	private int tableShards = 1;
+	private int builtStrategy = -1;
+	private int tableRate;
+	private int tableMinFreq;
+	private int tableMaxFreq;
+	// Each block's best candidate so far, per frequency range searched in parallel.
+	// null unless the table is sharded or the sweep is split
+	private Candidate[][][] partBests;
+	double minAtomError;
+	private final AtomicInteger blocks;
+	private final int numBlocks;
+	private final int numThreads;
+	// Threads each channel's blocks are split between. The rest of numThreads split
+	// the frequencies of each block instead
+	private int timeThreads;
+	private int trackWindow = 0;
+	private int trackHarmonics = 1;
+	private double trackThreshold = 0.0;
+	private double coarseStride = 0.0;
+	private int coarseKeep = 1;
+	private int[] coarseFreqs;
+	private int pursuit = 0;
+	private double silenceThreshold = 0.0;
+	private BlockCache cache;
+	private Checkpoint checkpoint;
+	private int pass;
+	private BlockParams[][] results;
+	private long cacheSeed;
+	private Profile profile;
+	// Counters of the recode in progress, null when it isn't being profiled
+	private Profile.Pass stats;
+	private double[] unitNorms;
+	private final Map<Integer, double[]> gramColumns = new LinkedHashMap<Integer, double[]>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<Integer, double[]> eldest)
+		{
+			return size() > MAX_GRAM_COLUMNS;
+		}
+	};
+	private int screenFactor = 1;
+	private int screenMaxFreq;
+	double[][][] screenLookup;
+
+	public SynthRecoder(final int channelBits, final int synthModRate, final int synthMinFreq, final int synthMaxFreq, final AtomicInteger blocks, final int numBlocks, final int numThreads)
+	{
+		this.channelBits = channelBits;
+		quantum = 2.0 / (Math.pow(2.0, channelBits) - 1.0);
+		this.synthModRate = synthModRate;
+		this.synthMinFreq = synthMinFreq;
+		this.synthMaxFreq = synthMaxFreq;
+		this.blocks = blocks;
+		this.numBlocks = numBlocks;
+		this.numThreads = numThreads;
+	}
+
+	// A recoder of the given shape
+	static SynthRecoder create(final int shape, final int channelBits, final int synthModRate, final int synthMinFreq, final int synthMaxFreq, final AtomicInteger blocks, final int numBlocks, final int numThreads)
+	{
+		if (shape == SQUARE)
+		{
+			return new SquareRecoder(channelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, numThreads);
+		}
+
+		if (shape == SAWTOOTH)
+		{
+			return new SawtoothRecoder(channelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, numThreads);
+		}
+
+		if (shape == SINE)
+		{
+			return new SineRecoder(channelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, numThreads);
+		}
+
+		return new TriangleRecoder(channelBits, synthModRate, synthMinFreq, synthMaxFreq, blocks, numBlocks, numThreads);
+	}
+
+	private synchronized void addError(final double error, final long samples)
+	{
+		sumAbsoluteError += error;
+		count.addAndGet(samples);
+	}
+
+	// Amplitude of a table row, computed exactly as the table builder does
+	double amplitude(final int row)
+	{
+		final int ampSteps = ampSteps();
+		if (row < ampSteps)
+		{
+			return (row + 1) * 1.0 / ampSteps;
+		}
+
+		return (row - ampSteps + 1) * -1.0 / ampSteps;
+	}
+
+	// Amplitude of an oscillator at step, which must not be 0
+	double stepAmplitude(final int step)
+	{
+		return amplitude(row(step, ampSteps()));
+	}
+
+	int ampSteps()
+	{
+		return (int) Math.round((Math.pow(2.0, channelBits) - 2) / 2);
+	}
+
+	public double averageError()
+	{
+		return sumAbsoluteError / count.get();
+	}
+
+	// Builds the tables for the whole frequency range, or for the first shard. The
+	// table itself only depends on the rate and strategy, so it is kept when the
+	// derived tables are rebuilt for other settings
+	void buildLookup(final int rate)
+	{
+		final int numFreqs = numFreqs();
+		final int ampSteps = ampSteps();
+		final boolean rebuilt = builtStrategy != tableStrategy || tableRate != rate;
+		buildTables(rate, synthMinFreq, tableStrategy == TablePlanner.SHARDED ? shardEnd(0) : synthMaxFreq);
+
+		if (rebuilt)
+		{
+			// Smallest absolute sum of any table row that isn't all zeros. Since
+			// |r - g| >= |g| - |r|, no candidate can beat silence on a block whose absolute
+			// sum is at most half of this. It comes with the table when the whole table
+			// was just computed, is read from a whole table that wasn't, like a mapped one,
+			// and computed otherwise
+			final boolean whole = tableMinFreq == synthMinFreq && tableMaxFreq == synthMaxFreq && tableStrategy != TablePlanner.ON_THE_FLY;
+			if (whole && !Double.isNaN(table.minSum))
+			{
+				minAtomError = table.minSum;
+			}
+			else if (whole)
+			{
+				minAtomError = Double.MAX_VALUE;
+				final double[] buffer = new double[synthModRate];
+				for (int z = synthMinFreq; z <= synthMaxFreq; z++)
+				{
+					for (int a = 0; a < ampSteps * 2; a++)
+					{
+						final double[] row = tableRow(z, a, buffer);
+						double sum = 0;
+						for (int s = 0; s < synthModRate; s++)
+						{
+							sum += Math.abs(row[s]);
+						}
+
+						if (sum > 0)
+						{
+							minAtomError = Math.min(minAtomError, sum);
+						}
+					}
+				}
+			}
+			else
+			{
+				minAtomError = fillRows(synthMinFreq, synthMaxFreq, rate, numThreads, null);
+			}
+		}
+
+		if (pursuit > 0)
+		{
+			// Squared norms of the full amplitude atoms that pursuit correlates against
+			unitNorms = new double[numFreqs];
+			final double[] buffer = new double[synthModRate];
+			for (int z = 0; z < numFreqs; z++)
+			{
+				final double[] unit = tableRow(z + synthMinFreq, ampSteps - 1, buffer);
+				for (int s = 0; s < synthModRate; s++)
+				{
+					unitNorms[z] += unit[s] * unit[s];
+				}
+			}
+		}
+
+		if (coarseStride > 0.0)
+		{
+			// Logarithmic grid, but never finer than the 1 Hz the fine search uses
+			final ArrayList<Integer> grid = new ArrayList<>();
+			int f = synthMinFreq;
+			while (f <= synthMaxFreq)
+			{
+				grid.add(f);
+				f = Math.max(f + 1, (int) Math.round(f * (1.0 + coarseStride)));
+			}
+
+			coarseFreqs = new int[grid.size()];
+			for (int i = 0; i < coarseFreqs.length; i++)
+			{
+				coarseFreqs[i] = grid.get(i);
+			}
+		}
+	}
+
+	// Table and screen for frequencies minFreq to maxFreq, in the planned strategy
+	private void buildTables(final int rate, final int minFreq, final int maxFreq)
+	{
+		final int ampSteps = ampSteps();
+		if (builtStrategy != tableStrategy || builtLayout != tableLayout || tableRate != rate || tableMinFreq != minFreq || tableMaxFreq != maxFreq)
+		{
+			// Reported with the entries it holds as its samples
+			final Profile.Stage stage = profile == null ? null : profile.begin("table");
+
+			// The old table goes before the new one takes its memory
+			table = null;
+			waves = new WaveTable(this, rate);
+			final boolean doubles = tableStrategy == TablePlanner.FULL || tableStrategy == TablePlanner.SHARDED;
+			if (tableStrategy == TablePlanner.FULL && tableCache != null)
+			{
+				try
+				{
+					table = new MappedTable(this, tableCache, minFreq, maxFreq, rate, numThreads);
+				}
+				catch (final IOException e)
+				{
+					throw new IllegalStateException("Can't use the table cache: " + e.getMessage(), e);
+				}
+			}
+			else if (doubles && tableLayout != JAGGED)
+			{
+				table = new SlabTable(this, minFreq, maxFreq, rate, numThreads, tableLayout == TRANSPOSED);
+			}
+			else if (doubles)
+			{
+				table = new JaggedTable(this, minFreq, maxFreq, rate, numThreads);
+			}
+			else if (tableStrategy == TablePlanner.INTEGER)
+			{
+				table = new IntegerTable(this, minFreq, maxFreq, rate, numThreads);
+			}
+			else if (tableStrategy == TablePlanner.COMPRESSED)
+			{
+				table = new CompressedTable(this, minFreq, maxFreq, rate, numThreads);
+			}
+			else
+			{
+				table = waves;
+			}
+
+			builtStrategy = tableStrategy;
+			builtLayout = tableLayout;
+			tableRate = rate;
+			tableMinFreq = minFreq;
+			tableMaxFreq = maxFreq;
+			if (stage != null)
+			{
+				profile.end(stage, (long) (maxFreq - minFreq + 1) * ampSteps * 2 * synthModRate);
+			}
+		}
+
+		screenMaxFreq = Math.min(synthMaxFreq, rate / (2 * screenFactor));
+		screenLookup = null;
+		final int screenTo = Math.min(screenMaxFreq, maxFreq);
+		if (screenFactor > 1 && screenTo >= minFreq && tableStrategy != TablePlanner.ON_THE_FLY && tableStrategy != TablePlanner.INTEGER)
+		{
+			// Group sums of each table row. The sum of absolute differences of group sums
+			// never exceeds the full rate error, so it is a safe bound to prune with
+			final int groups = (synthModRate + screenFactor - 1) / screenFactor;
+			final double[] buffer = new double[synthModRate];
+			screenLookup = new double[screenTo - minFreq + 1][ampSteps * 2][groups];
+			for (int z = minFreq; z <= screenTo; z++)
+			{
+				for (int a = 0; a < ampSteps * 2; a++)
+				{
+					final double[] row = tableRow(z, a, buffer);
+					for (int s = 0; s < synthModRate; s++)
+					{
+						screenLookup[z - minFreq][a][s / screenFactor] += row[s];
+					}
+				}
+			}
+		}
+	}
+
+	// Hands every row of frequencies minFreq to maxFreq to filler, which may be null,
+	// with the frequencies split between up to threads threads. Returns the smallest
+	// absolute sum of a row that isn't all zeros
+	double fillRows(final int minFreq, final int maxFreq, final int rate, final int threads, final RowFiller filler)
+	{
+		final int numFreqs = maxFreq - minFreq + 1;
+		final int count = Math.max(Math.min(threads, numFreqs), 1);
+		final TableThread[] parts = new TableThread[count];
+		final ArrayList<Thread> running = new ArrayList<>();
+		for (int i = 0; i < count; i++)
+		{
+			parts[i] = new TableThread(minFreq + numFreqs * i / count, minFreq + numFreqs * (i + 1) / count - 1, rate, filler);
+			if (count == 1)
+			{
+				parts[i].run();
+				break;
+			}
+
+			final Thread thread = new Thread(parts[i]);
+			thread.start();
+			running.add(thread);
+		}
+
+		join(running);
+		double retval = Double.MAX_VALUE;
+		for (final TableThread part : parts)
+		{
+			if (part.failure != null)
+			{
+				throw part.failure;
+			}
+
+			retval = Math.min(retval, part.minSum);
+		}
+
+		return retval;
+	}
+
+	double calcError(final double[] data, final int start, final int f, final int step, final int numSteps)
+	{
+		if (step != 0)
+		{
+			return tableFor(f).error(data, start, f, row(step, numSteps));
+		}
+
+		double error = 0;
+		for (int i = start; i < start + synthModRate; i++)
+		{
+			error += Math.abs(data[i]);
+		}
+
+		return error;
+	}
+
+	private double calcScreenError(final double[] screen, final int f, final int step, final int numSteps)
+	{
+		final double[] row = screenLookup[f - tableMinFreq][row(step, numSteps)];
+		double error = 0;
+		for (int i = 0; i < screen.length; i++)
+		{
+			error += Math.abs(screen[i] - row[i]);
+		}
+
+		return error;
+	}
+
+	double getLookup(final int f, final int step, final int sampleNum, final int numSteps)
+	{
+		if (step == 0)
+		{
+			return 0;
+		}
+
+		return tableFor(f).get(f, row(step, numSteps), sampleNum);
+	}
+
+	// The table frequency f is read from
+	private SynthTable tableFor(final int f)
+	{
+		return table.covers(f) ? table : waves;
+	}
+
+	// Dot products of one table row with every full amplitude atom. Blocks always
+	// start at phase 0, so a column is the same for every block and is worth keeping
+	private double[] gramColumn(final int f, final int row, final int ampSteps)
+	{
+		final Integer key = f * ampSteps * 2 + row;
+		synchronized (gramColumns)
+		{
+			final double[] column = gramColumns.get(key);
+			if (column != null)
+			{
+				return column;
+			}
+		}
+
+		final double[] atom = tableRow(f + synthMinFreq, row, new double[synthModRate]);
+		final double[] buffer = new double[synthModRate];
+		final double[] column = new double[numFreqs()];
+		for (int z = 0; z < column.length; z++)
+		{
+			final double[] unit = tableRow(z + synthMinFreq, ampSteps - 1, buffer);
+			double dot = 0;
+			for (int s = 0; s < synthModRate; s++)
+			{
+				dot += atom[s] * unit[s];
+			}
+
+			column[z] = dot;
+		}
+
+		synchronized (gramColumns)
+		{
+			gramColumns.put(key, column);
+		}
+
+		return column;
+	}
+
+	// Whether tables have been built for this rate
+	boolean hasLookup(final int rate)
+	{
+		return builtStrategy >= 0 && tableRate == rate;
+	}
+
+	boolean isSilent(final double blockError)
+	{
+		return blockError * 2.0 <= minAtomError || blockError < silenceThreshold * synthModRate;
+	}
+
+	// Reports the search of in, if it's being profiled
+	private void endSearch(final Profile.Stage search, final WaveData in)
+	{
+		if (search != null)
+		{
+			profile.end(search, (long) in.samples() * (in.stereo() ? 2 : 1));
+		}
+	}
+
+	// Adds what this thread allocated since allocatedStart and reports the pass
+	private void endPass(final long allocatedStart)
+	{
+		if (stats != null)
+		{
+			stats.allocated.add(Profile.allocatedBytes() - allocatedStart);
+			profile.endPass(stats);
+			stats = null;
+		}
+	}
+
+	private void join(final ArrayList<Thread> threads)
+	{
+		for (final Thread thread : threads)
+		{
+			while (true)
+			{
+				try
+				{
+					thread.join();
+					break;
+				}
+				catch (final Exception e)
+				{
+				}
+			}
+		}
+	}
+
+	// Matching pursuit: correlate the block with every frequency's full amplitude atom
+	// once, then pick up to pursuit oscillators, updating the correlations from the
+	// chosen atom's Gram column rather than sweeping again. Atoms are chosen on L2
+	// gain, but only kept while they lower the block's absolute error. Returns the
+	// number of atoms scored
+	private int pursueBlock(final double[] source, final int start, final int ampSteps, final double[] correlations, final double[] residual, final double[] rowBuffer, final BlockParams params)
+	{
+		double residualError = 0;
+		for (int j = 0; j < synthModRate; j++)
+		{
+			residual[j] = source[start + j];
+			residualError += Math.abs(residual[j]);
+		}
+
+		for (int z = 0; z < correlations.length; z++)
+		{
+			final double[] unit = tableRow(z + synthMinFreq, ampSteps - 1, rowBuffer);
+			double dot = 0;
+			for (int s = 0; s < synthModRate; s++)
+			{
+				dot += residual[s] * unit[s];
+			}
+
+			correlations[z] = dot;
+		}
+
+		int scored = correlations.length;
+		for (int k = 0; k < pursuit; k++)
+		{
+			scored += correlations.length;
+			int bestFreq = -1;
+			int bestStep = 0;
+			double bestGain = 0;
+			for (int z = 0; z < correlations.length; z++)
+			{
+				if (unitNorms[z] == 0)
+				{
+					continue;
+				}
+
+				int step = (int) Math.round(correlations[z] / unitNorms[z] * ampSteps);
+				step = Math.max(-ampSteps, Math.min(ampSteps, step));
+				if (step == 0)
+				{
+					continue;
+				}
+
+				final double scale = step * 1.0 / ampSteps;
+				final double gain = scale * (2.0 * correlations[z] - scale * unitNorms[z]);
+				if (gain > bestGain)
+				{
+					bestFreq = z;
+					bestStep = step;
+					bestGain = gain;
+				}
+			}
+
+			if (bestFreq < 0)
+			{
+				break;
+			}
+
+			final int row = row(bestStep, ampSteps);
+			final double[] atom = tableRow(bestFreq + synthMinFreq, row, rowBuffer);
+			double error = 0;
+			for (int j = 0; j < synthModRate; j++)
+			{
+				error += Math.abs(residual[j] - atom[j]);
+			}
+
+			if (error >= residualError)
+			{
+				break;
+			}
+
+			residualError = error;
+			for (int j = 0; j < synthModRate; j++)
+			{
+				residual[j] -= atom[j];
+			}
+
+			params.freqs[params.count] = bestFreq + synthMinFreq;
+			params.steps[params.count] = bestStep;
+			++params.count;
+
+			final double[] column = gramColumn(bestFreq, row, ampSteps);
+			for (int z = 0; z < correlations.length; z++)
+			{
+				correlations[z] -= column[z];
+			}
+		}
+
+		return scored;
+	}
+
+	int numFreqs()
+	{
+		return synthMaxFreq - synthMinFreq + 1;
+	}
+
+	int oscillators()
+	{
+		return Math.max(pursuit, 1);
+	}
+
+	// Oscillators chosen for each channel and block by the last recode
+	BlockParams[][] params()
+	{
+		return results;
+	}
+
+	double quantize(final double in)
+	{
+		final int stepNum = (int) Math.round(in / quantum);
+		return stepNum * quantum;
+	}
+
+	public WaveData recode(final WaveData in)
+	{
+		stats = profile == null ? null : profile.beginPass(getClass().getSimpleName(), pass);
+		final long allocatedStart = stats == null ? 0 : Profile.allocatedBytes();
+		final long tableStart = System.nanoTime();
+		buildLookup(in.rate());
+		if (stats != null)
+		{
+			stats.tableBuild = System.nanoTime() - tableStart;
+		}
+
+		// Everything after the first table, including building the other shards
+		final Profile.Stage search = profile == null ? null : profile.begin("search");
+
+		results = new BlockParams[in.stereo() ? 2 : 1][in.samples() / synthModRate];
+
+		// A short input has fewer blocks than threads, so the threads left over split
+		// the frequency sweep of every block between them instead
+		timeThreads = Math.max(Math.min(numThreads, results[0].length), 1);
+		final int freqThreads = shardable() ? numThreads / timeThreads : 1;
+		partBests = null;
+		if (tableStrategy == TablePlanner.SHARDED || freqThreads > 1)
+		{
+			// Every block is searched over one shard before the next shard is built, so
+			// each block ends up with its best candidate over the whole range
+			partBests = new Candidate[freqThreads][results.length][results[0].length];
+			final int shards = tableStrategy == TablePlanner.SHARDED ? tableShards : 1;
+			for (int shard = 0; shard < shards; shard++)
+			{
+				if (tableStrategy == TablePlanner.SHARDED)
+				{
+					final long shardStart = System.nanoTime();
+					buildTables(in.rate(), shardStart(shard), shardEnd(shard));
+					if (stats != null && shard > 0)
+					{
+						stats.tableBuild += System.nanoTime() - shardStart;
+					}
+				}
+
+				final int lo = Math.max(tableMinFreq, synthMinFreq);
+				final int width = Math.min(tableMaxFreq, synthMaxFreq) - lo + 1;
+				final ArrayList<Thread> threads = new ArrayList<>();
+				for (int c = 0; c < results.length; c++)
+				{
+					for (int i = 0; i < timeThreads; i++)
+					{
+						for (int p = 0; p < freqThreads; p++)
+						{
+							final ShardThread runner = new ShardThread(c == 0 ? in.channel1() : in.channel2(), i, c, lo + width * p / freqThreads, lo + width * (p + 1) / freqThreads - 1, partBests[p]);
+							final Thread thread = new Thread(runner);
+							thread.start();
+							threads.add(thread);
+						}
+					}
+				}
+
+				join(threads);
+			}
+		}
+
+		// The coarse search can settle on another candidate than the exhaustive one, so
+		// its settings are part of the key
+		final long stride = Double.doubleToLongBits(coarseStride);
+		cacheSeed = BlockCache.seed(getClass().getName(), channelBits, synthModRate, synthMinFreq, synthMaxFreq, in.rate(), (int) (stride >>> 32), (int) stride, coarseKeep);
+
+		// Do left channel first as it always exists
+		final double[] left = new double[in.samples()];
+		final ArrayList<Thread> leftThreads = new ArrayList<>();
+		final ArrayList<Thread> rightThreads = new ArrayList<>();
+		for (int i = 0; i < timeThreads; i++)
+		{
+			final WorkThread runner = new WorkThread(in, left, in.channel1(), blocks, i, numBlocks, 0);
+			final Thread thread = new Thread(runner);
+			thread.start();
+			leftThreads.add(thread);
+		}
+
+		if (!in.stereo())
+		{
+			join(leftThreads);
+			endSearch(search, in);
+			endPass(allocatedStart);
+			return new WaveData(left, in.rate());
+		}
+
+		final double[] right = new double[in.samples()];
+		for (int i = 0; i < timeThreads; i++)
+		{
+			final WorkThread runner = new WorkThread(in, right, in.channel2(), blocks, i, numBlocks, 1);
+			final Thread thread = new Thread(runner);
+			thread.start();
+			rightThreads.add(thread);
+		}
+
+		join(leftThreads);
+		join(rightThreads);
+		endSearch(search, in);
+		endPass(allocatedStart);
+		return new WaveData(left, right, in.rate());
+	}
+
+	private int row(final int step, final int numSteps)
+	{
+		if (step > 0)
+		{
+			return step - 1;
+		}
+
+		return numSteps - step - 1;
+	}
+
+	// The best of the candidates the frequency ranges found for a block, null if the
+	// block was silent. A tie goes to the lower frequency, which is the one a single
+	// sweep would have kept, so the result doesn't depend on the split
+	private Candidate bestPart(final int channel, final int block)
+	{
+		Candidate retval = null;
+		int evaluated = 0;
+		for (final Candidate[][] part : partBests)
+		{
+			final Candidate candidate = part[channel][block];
+			if (candidate == null)
+			{
+				continue;
+			}
+
+			evaluated += candidate.evaluated;
+			if (retval == null || candidate.error < retval.error || candidate.error == retval.error && candidate.freq < retval.freq)
+			{
+				retval = candidate;
+			}
+		}
+
+		if (retval != null)
+		{
+			retval.evaluated = evaluated;
+		}
+
+		return retval;
+	}
+
+	// Takes the winner the shards found for a block, null if the block was silent
+	private void shardResult(final Candidate best, final BlockParams params)
+	{
+		params.count = 0;
+		if (best == null)
+		{
+			return;
+		}
+
+		if (stats != null)
+		{
+			stats.candidates.add(best.evaluated);
+		}
+
+		if (best.step != 0)
+		{
+			params.shapes[0] = 0;
+			params.freqs[0] = best.freq;
+			params.steps[0] = best.step;
+			params.count = 1;
+		}
+	}
+
+	// Picks the oscillators for one block, leaving params.count at 0 to keep it silent
+	private void search(final double[] source, final int start, final int ampSteps, final double[] screen, final double[] correlations, final double[] residual, final double[] rowBuffer, final int prevFreq, final BlockParams params)
+	{
+		params.count = 0;
+		double blockError = 0;
+		for (int j = start; j < start + synthModRate; j++)
+		{
+			blockError += Math.abs(source[j]);
+		}
+
+		if (isSilent(blockError))
+		{
+			return;
+		}
+
+		if (pursuit > 0)
+		{
+			final int scored = pursueBlock(source, start, ampSteps, correlations, residual, rowBuffer, params);
+			if (stats != null)
+			{
+				stats.candidates.add(scored);
+			}
+
+			return;
+		}
+
+		if (screen != null)
+		{
+			// Box filter and decimate the block for the low frequency screen
+			Arrays.fill(screen, 0);
+			for (int j = 0; j < synthModRate; j++)
+			{
+				screen[j / screenFactor] += source[start + j];
+			}
+		}
+
+		// A tracked result depends on the block before, not just on the block
+		final BlockCache cache = trackWindow > 0 ? null : this.cache;
+		final Candidate best = new Candidate(synthMinFreq, 0, blockError);
+		final long key = cache == null ? 0 : BlockCache.key(cacheSeed, source, start, synthModRate);
+		final Long cached = cache == null ? null : cache.get(key);
+		if (cached != null)
+		{
+			best.freq = BlockCache.unpackFreq(cached);
+			best.step = BlockCache.unpackStep(cached);
+		}
+		else if (trackWindow > 0 && prevFreq > 0)
+		{
+			// Audio is quasi-stationary, so look around the last winner and its
+			// harmonics first and only fall back to the full sweep if that fails
+			for (int h = 1; h <= trackHarmonics; h++)
+			{
+				searchFrequencies(source, start, prevFreq * h - trackWindow, prevFreq * h + trackWindow, ampSteps, screen, best);
+				if (h > 1)
+				{
+					searchFrequencies(source, start, prevFreq / h - trackWindow, prevFreq / h + trackWindow, ampSteps, screen, best);
+				}
+			}
+
+			if (best.error > trackThreshold * blockError)
+			{
+				searchAll(source, start, ampSteps, screen, best);
+			}
+		}
+		else
+		{
+			searchAll(source, start, ampSteps, screen, best);
+		}
+
+		if (cache != null && cached == null)
+		{
+			cache.put(key, BlockCache.pack(best.freq, best.step));
+		}
+
+		if (stats != null)
+		{
+			stats.candidates.add(best.evaluated);
+		}
+
+		if (best.step != 0)
+		{
+			params.shapes[0] = 0;
+			params.freqs[0] = best.freq;
+			params.steps[0] = best.step;
+			params.count = 1;
+		}
+	}
+
+	void searchAll(final double[] source, final int start, final int ampSteps, final double[] screen, final Candidate best)
+	{
+		if (coarseFreqs == null)
+		{
+			searchFrequencies(source, start, synthMinFreq, synthMaxFreq, ampSteps, screen, best);
+			return;
+		}
+
+		// Score every point of the coarse grid and keep the best few cells, sorted by
+		// error
+		final int[] cells = new int[coarseKeep];
+		final double[] cellErrors = new double[coarseKeep];
+		Arrays.fill(cells, -1);
+		Arrays.fill(cellErrors, Double.MAX_VALUE);
+		final Candidate cell = new Candidate(synthMinFreq, 0, 0);
+		for (int k = 0; k < coarseFreqs.length; k++)
+		{
+			cell.error = Double.MAX_VALUE;
+			searchFrequencies(source, start, coarseFreqs[k], coarseFreqs[k], ampSteps, screen, cell);
+			if (cell.error < best.error)
+			{
+				best.freq = cell.freq;
+				best.step = cell.step;
+				best.error = cell.error;
+			}
+
+			int pos = coarseKeep;
+			while (pos > 0 && cell.error < cellErrors[pos - 1])
+			{
+				--pos;
+			}
+
+			if (pos < coarseKeep)
+			{
+				System.arraycopy(cells, pos, cells, pos + 1, coarseKeep - pos - 1);
+				System.arraycopy(cellErrors, pos, cellErrors, pos + 1, coarseKeep - pos - 1);
+				cells[pos] = k;
+				cellErrors[pos] = cell.error;
+			}
+		}
+
+		best.evaluated += cell.evaluated;
+
+		// Refine each kept cell at 1 Hz over the whole span between its neighbours
+		for (int c = 0; c < coarseKeep && cells[c] >= 0; c++)
+		{
+			final int k = cells[c];
+			final int lo = k == 0 ? synthMinFreq : coarseFreqs[k - 1] + 1;
+			final int hi = k == coarseFreqs.length - 1 ? synthMaxFreq : coarseFreqs[k + 1] - 1;
+			searchFrequencies(source, start, lo, hi, ampSteps, screen, best);
+		}
+	}
+
+	// Carries on the exhaustive search of a block over part of the shard that is built
+	private void searchShard(final double[] source, final int start, final int ampSteps, final double[] screen, final int minFreq, final int maxFreq, final Candidate best)
+	{
+		if (screen != null)
+		{
+			Arrays.fill(screen, 0);
+			for (int j = 0; j < synthModRate; j++)
+			{
+				screen[j / screenFactor] += source[start + j];
+			}
+		}
+
+		searchFrequencies(source, start, minFreq, maxFreq, ampSteps, screen, best);
+	}
+
+	void searchFrequencies(final double[] source, final int start, final int minFreq, final int maxFreq, final int ampSteps, final double[] screen, final Candidate best)
+	{
+		final int lo = Math.max(minFreq, synthMinFreq);
+		final int hi = Math.min(maxFreq, synthMaxFreq);
+		if (lo >= tableMinFreq && hi <= tableMaxFreq && table.sweep(source, start, lo, hi, ampSteps, best))
+		{
+			return;
+		}
+
+		// Sweep through frequencies
+		for (int z = lo; z <= hi; z++)
+		{
+			final boolean screened = screen != null && z <= screenMaxFreq;
+
+			// Sweep through positive and negative amplitudes
+			for (int a = 1; a <= ampSteps; a++)
+			{
+				// Calculate error over this block with these settings, unless the
+				// decimated bound already rules the candidate out
+				if (!screened || calcScreenError(screen, z, a, ampSteps) < best.error)
+				{
+					final double error = calcError(source, start, z, a, ampSteps);
+					++best.evaluated;
+					if (error < best.error)
+					{
+						best.freq = z;
+						best.step = a;
+						best.error = error;
+					}
+				}
+
+				if (!screened || calcScreenError(screen, z, -a, ampSteps) < best.error)
+				{
+					final double error = calcError(source, start, z, -a, ampSteps);
+					++best.evaluated;
+					if (error < best.error)
+					{
+						best.freq = z;
+						best.step = -a;
+						best.error = error;
+					}
+				}
+			}
+		}
+	}
+
+	// Reuse the results of identical blocks from this or earlier passes or runs.
+	// Only the greedy solver without tracking uses the cache
+	public void setCache(final BlockCache cache)
+	{
+		this.cache = cache;
+	}
+
+	// Log every block's result under this pass number, and replay blocks a previous
+	// run already logged
+	public void setCheckpoint(final Checkpoint checkpoint, final int pass)
+	{
+		this.checkpoint = checkpoint;
+		this.pass = pass;
+	}
+
+	// Coarse-to-fine search: each coarse grid frequency is (1 + stride) times the
+	// previous one, and the keep best grid cells are refined at 1 Hz. A stride of 0
+	// keeps the exhaustive sweep
+	public void setCoarseSearch(final double stride, final int keep)
+	{
+		coarseStride = stride;
+		coarseKeep = keep;
+	}
+
+	// Report every recode as a pass, with its table build time, searched blocks,
+	// scored candidates and allocations
+	public void setProfile(final Profile profile)
+	{
+		this.profile = profile;
+	}
+
+	// Fit this many oscillators per block with matching pursuit in a single recode,
+	// instead of one per pass. Tracking, coarse search and screening don't apply
+	public void setPursuit(final int oscillators)
+	{
+		pursuit = oscillators;
+	}
+
+	// Decimated pre-screening: candidates below rate / (2 * factor) are first scored
+	// on factor-sample group sums, and only re-scored at full rate if that lower
+	// bound can still beat the best error so far. A factor of 1 disables it
+	public void setScreenFactor(final int factor)
+	{
+		screenFactor = factor;
+	}
+
+	// How the table is held, one of TablePlanner's strategies. A sharded table is
+	// built and searched in shards frequency ranges, one after another
+	public void setTableStrategy(final int strategy, final int shards)
+	{
+		tableStrategy = strategy;
+		tableShards = strategy == TablePlanner.SHARDED ? Math.max(Math.min(shards, numFreqs()), 1) : 1;
+	}
+
+	// Full tables are mapped from files in cache, and written there the first time,
+	// instead of being built on the heap. null turns that off
+	public void setTableCache(final TableCache cache)
+	{
+		tableCache = cache;
+	}
+
+	// Whether a full table would be mapped from the table cache
+	boolean mapsTables()
+	{
+		return tableCache != null;
+	}
+
+	// Layout of a full or sharded table, JAGGED, FLAT or TRANSPOSED
+	public void setTableLayout(final int layout)
+	{
+		tableLayout = layout;
+	}
+
+	// Blocks whose mean absolute residual is below threshold are left silent without
+	// searching. Blocks no table row could improve on are always skipped
+	public void setSilenceThreshold(final double threshold)
+	{
+		silenceThreshold = threshold;
+	}
+
+	// Tracked search: try +/- window Hz around the previous block's winner and its
+	// first harmonics, widening to the full range when the best local error is
+	// still above threshold * the block's own absolute sum
+	public void setTracking(final int window, final int harmonics, final double threshold)
+	{
+		trackWindow = window;
+		trackHarmonics = harmonics;
+		trackThreshold = threshold;
+	}
+
+	abstract int shape();
+
+	// Sharding, and splitting the sweep of a block between threads, only work for the
+	// plain exhaustive search, since every other search looks at frequencies outside
+	// the range
+	boolean shardable()
+	{
+		return pursuit == 0 && trackWindow == 0 && coarseStride == 0.0 && cache == null;
+	}
+
+	private int shardEnd(final int shard)
+	{
+		return shardStart(shard + 1) - 1;
+	}
+
+	private int shardStart(final int shard)
+	{
+		return synthMinFreq + (int) ((long) numFreqs() * shard / tableShards);
+	}
+
+	// Heap the tables take with the given strategy, roughly. Every row is an array
+	// with a 16 byte header
+	long tableBytes(final int strategy, final int shards, final int rate)
+	{
+		final long rows = 2L * ampSteps();
+		long retval = pursuit > 0 ? (MAX_GRAM_COLUMNS + 2L) * numFreqs() * 8 : 0;
+		if (strategy == TablePlanner.ON_THE_FLY)
+		{
+			return retval;
+		}
+
+		final long freqs = strategy == TablePlanner.SHARDED ? (numFreqs() + shards - 1) / shards : numFreqs();
+		if (strategy == TablePlanner.INTEGER)
+		{
+			return retval + freqs * (rows * synthModRate * (integralBytes() ? 1L : 2L) + 16);
+		}
+
+		if (strategy == TablePlanner.FULL && tableCache != null)
+		{
+			// Only the buffers of the mapped slabs are on the heap
+			retval += freqs * 64;
+		}
+		else if (strategy != TablePlanner.COMPRESSED && tableLayout != JAGGED)
+		{
+			retval += freqs * (rows * synthModRate * 8L + 16);
+		}
+		else
+		{
+			retval += freqs * rows * (synthModRate * (strategy == TablePlanner.COMPRESSED ? 2L : 8L) + 16);
+		}
+
+		if (screenFactor > 1)
+		{
+			final long screenFreqs = Math.min(Math.max(Math.min(synthMaxFreq, rate / (2 * screenFactor)) - synthMinFreq + 1, 0), freqs);
+			retval += screenFreqs * rows * ((synthModRate + screenFactor - 1) / screenFactor * 8L + 16);
+		}
+
+		if (strategy == TablePlanner.COMPRESSED)
+		{
+			// The shared palette, and one for the frequency each building thread is on
+			retval += (numThreads + 1L) * (2L << channelBits) * 64;
+		}
+
+		return retval;
+	}
+
+	// Every table row is a whole number of quantization steps, or of amplitude steps
+	// for square waves, so there are at most about 2^(channelBits + 1) distinct values
+	boolean compressible()
+	{
+		return channelBits <= 14;
+	}
+
+	// Integer tables need every entry's steps to fit in a short and a block's score
+	// to fit in an int. Pursuit scores candidates without the sweep, so it needs a
+	// table of doubles. IntegerTable checks the same before building
+	boolean integral()
+	{
+		return pursuit == 0 && tableSteps() <= Short.MAX_VALUE && synthModRate * 2 * tableSteps() < Integer.MAX_VALUE;
+	}
+
+	// Whether an integer table's entries fit in bytes, or need shorts
+	boolean integralBytes()
+	{
+		return tableSteps() <= Byte.MAX_VALUE;
+	}
+
+	// Most steps of tableStep() an entry can be from 0. Entries are the amplitude
+	// times a shape value within +/- 1, so at most 2^(channelBits - 1) steps
+	long tableSteps()
+	{
+		return 1L << (channelBits - 1);
+	}
+
+	// Distance between the values a table entry can take
+	double tableStep()
+	{
+		return quantum;
+	}
+
+	// One table row, in buffer or straight from the table
+	private double[] tableRow(final int f, final int row, final double[] buffer)
+	{
+		return tableFor(f).row(f, row, buffer);
+	}
+
+	// Runs just the search over the first numBlocks blocks of source, split over
+	// numThreads threads the way recode splits a channel, and returns the nanoseconds
+	// it took. The table must have been built. A sharded table is only searched over
+	// the shard that is built, and the time scaled up by the number of shards
+	long timeSearch(final double[] source, final int numBlocks, final int numThreads)
+	{
+		final ArrayList<Thread> threads = new ArrayList<>();
+		final long start = System.nanoTime();
+		for (int i = 0; i < numThreads; i++)
+		{
+			final Thread thread = new Thread(new SearchThread(source, numBlocks * i / numThreads, numBlocks * (i + 1) / numThreads));
+			thread.start();
+			threads.add(thread);
+		}
+
+		join(threads);
+		return (System.nanoTime() - start) * tableShards;
+	}
+
+	// The value of the wave at amplitude a, frequency f and time t, scale applied to
+	// the part that doesn't depend on the amplitude
+	double wave(final int f, final double a, final double t)
+	{
+		return scale(a, shapeValue(f, t));
+	}
+
+	abstract double shapeValue(int f, double t);
+
+	abstract double scale(double a, double value);
+
+	public static int layout(final String name)
+	{
+		for (int l = 0; l < LAYOUTS.length; l++)
+		{
+			if (LAYOUTS[l].equals(name))
+			{
+				return l;
+			}
+		}
+
+		return -1;
+	}
+
+}
@@ -0,0 +1,233 @@
+package audio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Turns a synth parameter file back into PCM, optionally adding a residual such as
+// the DPCM passes, and streams it into a WAV file a chunk of blocks at a time
+public class SynthRenderer
+{
+	class WorkThread implements Runnable
+	{
+		double[][] target;
+		int chunkStart;
+		int beginBlock;
+		int endBlock;
+
+		public WorkThread(final double[][] target, final int chunkStart, final int beginBlock, final int endBlock)
+		{
+			this.target = target;
+			this.chunkStart = chunkStart;
+			this.beginBlock = beginBlock;
+			this.endBlock = endBlock;
+		}
+
+		// Each pass's block is summed on its own and then added, the same order the
+		// recoders and DPCM sum in
+		@Override
+		public void run()
+		{
+			final int blockSize = params.blockSize();
+			final double[] passBlock = new double[blockSize];
+			for (int p = 0; p < params.passes.size(); p++)
+			{
+				final ParameterStream.Pass pass = params.passes.get(p);
+				final SynthRecoder[] shapes = coders[p];
+				for (int c = 0; c < target.length; c++)
+				{
+					for (int b = beginBlock; b < endBlock; b++)
+					{
+						final BlockParams block = pass.params[c][b];
+						if (block.count == 0)
+						{
+							continue;
+						}
+
+						Arrays.fill(passBlock, 0);
+						for (int k = 0; k < block.count; k++)
+						{
+							final SynthRecoder coder = shapes[block.shapes[k]];
+							renderOscillator(passBlock, 0, coder, shapeValues[coder.shape()][block.freqs[k] - params.minFreq()], block.steps[k]);
+						}
+
+						final int offset = b * blockSize - chunkStart;
+						for (int s = 0; s < blockSize; s++)
+						{
+							target[c][offset + s] += passBlock[s];
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static final int CHUNK_BLOCKS = 1024;
+
+	private final ParameterStream params;
+	private final int numThreads;
+	// Per pass, a recoder for each of its shapes, whose scale every oscillator is
+	// rendered with
+	private final SynthRecoder[][] coders;
+	// Per shape that's used, its shape values over a block for every frequency, from
+	// the recoder's own shapeValue. Scaling them is how the recoders build their
+	// tables, so oscillators match the tables exactly without a sine per sample
+	private final double[][][] shapeValues = new double[SynthRecoder.NUM_SHAPES][][];
+
+	public SynthRenderer(final ParameterStream params, final int numThreads)
+	{
+		this.params = params;
+		this.numThreads = numThreads;
+		coders = new SynthRecoder[params.passes.size()][];
+		for (int p = 0; p < coders.length; p++)
+		{
+			final ParameterStream.Pass pass = params.passes.get(p);
+			coders[p] = new SynthRecoder[pass.shapes.length];
+			for (int k = 0; k < pass.shapes.length; k++)
+			{
+				coders[p][k] = SynthRecoder.create(pass.shapes[k], pass.bits[k], params.blockSize(), params.minFreq(), params.maxFreq(), new AtomicInteger(), 0, 1);
+				if (shapeValues[pass.shapes[k]] == null)
+				{
+					shapeValues[pass.shapes[k]] = shapeValues(coders[p][k], params.rate());
+				}
+			}
+		}
+	}
+
+	// shapeValue over a block, for every frequency of coder
+	static double[][] shapeValues(final SynthRecoder coder, final int rate)
+	{
+		final double[][] retval = new double[coder.synthMaxFreq - coder.synthMinFreq + 1][coder.synthModRate];
+		for (int z = coder.synthMinFreq; z <= coder.synthMaxFreq; z++)
+		{
+			for (int s = 0; s < coder.synthModRate; s++)
+			{
+				retval[z - coder.synthMinFreq][s] = coder.shapeValue(z, s * 1.0 / rate);
+			}
+		}
+
+		return retval;
+	}
+
+	public static void main(final String[] args) throws Exception
+	{
+		if (args.length < 3)
+		{
+			System.out.println("Usage: SynthRenderer <parameter file> <output file> <result bits> [threads] [residual file]");
+			System.exit(0);
+		}
+
+		final ParameterStream params = ParameterStream.read(args[0]);
+		final byte resultBits = Byte.parseByte(args[2]);
+		int threads = 1;
+		if (args.length > 3)
+		{
+			threads = Integer.parseInt(args[3]);
+		}
+
+		WaveData residual = null;
+		if (args.length > 4)
+		{
+			// Either a WAV file or the codes DPCM wrote to its dpcmFile
+			if (DPCMStream.isStream(args[4]))
+			{
+				residual = DPCMStream.read(args[4]).decode();
+			}
+			else
+			{
+				residual = WaveDecoder.decode(args[4], threads);
+			}
+		}
+
+		final long start = System.nanoTime();
+		final SynthRenderer renderer = new SynthRenderer(params, threads);
+		renderer.render(residual, new WaveEncoder(resultBits, args[1]));
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		final double length = params.samples() * 1.0 / params.rate();
+		System.out.println("Rendered " + params.samples() + " samples in " + seconds + "s, " + length / seconds + " times realtime");
+	}
+
+	public void render(final WaveData residual, final WaveEncoder encoder) throws Exception
+	{
+		final int channels = params.stereo() ? 2 : 1;
+		if (residual != null && (residual.rate() != params.rate() || residual.stereo() && !params.stereo()))
+		{
+			throw new Exception("The residual must have the parameter file's rate and at most its channels");
+		}
+
+		final int blockSize = params.blockSize();
+		final int numBlocks = params.samples() / blockSize;
+		encoder.begin(params.rate(), params.stereo(), params.samples());
+		for (int firstBlock = 0; firstBlock * blockSize < params.samples(); firstBlock += CHUNK_BLOCKS)
+		{
+			final int lastBlock = Math.min(firstBlock + CHUNK_BLOCKS, numBlocks);
+			final int chunkStart = firstBlock * blockSize;
+			final int chunkEnd = lastBlock == numBlocks ? params.samples() : lastBlock * blockSize;
+			final double[][] chunk = new double[channels][chunkEnd - chunkStart];
+
+			// The residual goes first, since DPCM adds every synth pass to its output
+			if (residual != null)
+			{
+				for (int c = 0; c < channels; c++)
+				{
+					final double[] source = c == 0 || !residual.stereo() ? residual.channel1() : residual.channel2();
+					for (int i = chunkStart; i < Math.min(chunkEnd, residual.samples()); i++)
+					{
+						chunk[c][i - chunkStart] = source[i];
+					}
+				}
+			}
+
+			final ArrayList<Thread> threads = new ArrayList<>();
+			final int perThread = (lastBlock - firstBlock + numThreads - 1) / numThreads;
+			for (int b = firstBlock; b < lastBlock; b += perThread)
+			{
+				final Thread thread = new Thread(new WorkThread(chunk, chunkStart, b, Math.min(b + perThread, lastBlock)));
+				thread.start();
+				threads.add(thread);
+			}
+
+			for (final Thread thread : threads)
+			{
+				while (true)
+				{
+					try
+					{
+						thread.join();
+						break;
+					}
+					catch (final Exception e)
+					{
+					}
+				}
+			}
+
+			if (channels == 2)
+			{
+				encoder.write(new WaveData(chunk[0], chunk[1], params.rate()));
+			}
+			else
+			{
+				encoder.write(new WaveData(chunk[0], params.rate()));
+			}
+		}
+
+		encoder.end();
+	}
+
+	// Adds one oscillator's block to target at offset, scaling the shape values of
+	// its frequency the way the recoder's tables do
+	static void renderOscillator(final double[] target, final int offset, final SynthRecoder coder, final double[] values, final int step)
+	{
+		if (step == 0)
+		{
+			return;
+		}
+
+		final double a = coder.stepAmplitude(step);
+		for (int s = 0; s < coder.synthModRate; s++)
+		{
+			target[offset + s] += coder.scale(a, values[s]);
+		}
+	}
+}
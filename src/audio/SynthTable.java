@@ -0,0 +1,64 @@
+package audio;
+
+// One way of holding a synth recoder's table: for every frequency from minFreq to
+// maxFreq, a row per amplitude step with synthModRate entries. Row r holds the wave
+// at SynthRecoder.amplitude(r), positive steps first. The recoder builds the table
+// its strategy asks for and reads every entry through it
+abstract class SynthTable
+{
+	final int minFreq;
+	final int maxFreq;
+	final int synthModRate;
+	// Smallest absolute sum of a row that isn't all zeros, NaN if the rows weren't
+	// computed while building the table
+	double minSum = Double.NaN;
+
+	SynthTable(final int minFreq, final int maxFreq, final int synthModRate)
+	{
+		this.minFreq = minFreq;
+		this.maxFreq = maxFreq;
+		this.synthModRate = synthModRate;
+	}
+
+	boolean covers(final int f)
+	{
+		return f >= minFreq && f <= maxFreq;
+	}
+
+	// Entry s of a row of frequency f
+	abstract double get(int f, int row, int s);
+
+	// A row of frequency f, in buffer or in the table's own array, which must not be
+	// changed
+	double[] row(final int f, final int row, final double[] buffer)
+	{
+		for (int s = 0; s < synthModRate; s++)
+		{
+			buffer[s] = get(f, row, s);
+		}
+
+		return buffer;
+	}
+
+	// Sum of absolute differences between a row of frequency f and the block at start
+	// of data, summed in sample order
+	double error(final double[] data, final int start, final int f, final int row)
+	{
+		double error = 0;
+		for (int i = start; i < start + synthModRate; i++)
+		{
+			error += Math.abs(data[i] - get(f, row, i - start));
+		}
+
+		return error;
+	}
+
+	// Scores every candidate of frequencies lo to hi, which the table covers, with a
+	// kernel of the table's own, replacing best with anything better. The winner must
+	// be the one the plain sweep would pick. Returns false, having done nothing, for a
+	// table without a kernel of its own
+	boolean sweep(final double[] source, final int start, final int lo, final int hi, final int ampSteps, final SynthRecoder.Candidate best)
+	{
+		return false;
+	}
+}
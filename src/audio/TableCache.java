@@ -0,0 +1,226 @@
+package audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+// Full synth tables kept as files in a directory, so runs with the same settings
+// map the table instead of computing it again. Files are mapped read-only, so
+// processes on the same host share one copy through the page cache. A file is
+// written under a temporary name and moved into place, so a reader never sees half
+// of one, and it is only used if its header matches the settings and its checksum
+// matches its contents. Reading the whole table for the checksum costs about as
+// much as mapping it saves, so it's only compared once, by the first open after
+// the file was written. That open stamps the header with a modification time it
+// then gives the file, and later opens trust the table while the file still has
+// that time. With verify, every open compares the checksum.
+//
+// Layout, little endian: a HEADER_BYTES header of magic, version, the number of
+// settings, the settings, the table size, the CRC32 of the table and the stamp, 0
+// until the checksum was compared, then every frequency's slab of rows one after
+// the other, each row synthModRate doubles
+public class TableCache
+{
+	// Fills every frequency's slab with its rows, from as many threads as it likes
+	interface Filler
+	{
+		void fill(DoubleBuffer[] slabs);
+	}
+
+	private static final int MAGIC = 0x42545953; // SYTB
+	private static final byte VERSION = 2;
+	private static final int HEADER_BYTES = 72;
+
+	private final File dir;
+	private final boolean verify;
+
+	public TableCache(final String dir, final boolean verify)
+	{
+		this.dir = new File(dir);
+		this.verify = verify;
+	}
+
+	// Where the checksum is in the header, everything before it identifies the table
+	// and the stamp follows it
+	private static int crcPosition(final int[] settings)
+	{
+		return 4 + 1 + 1 + 4 * settings.length + 8;
+	}
+
+	private static ByteBuffer header(final int[] settings, final long tableBytes, final long crc)
+	{
+		final ByteBuffer retval = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		retval.putInt(MAGIC);
+		retval.put(VERSION);
+		retval.put((byte) settings.length);
+		for (final int setting : settings)
+		{
+			retval.putInt(setting);
+		}
+
+		retval.putLong(tableBytes);
+		retval.putLong(crc);
+		retval.putLong(0);
+		retval.rewind();
+		return retval;
+	}
+
+	// One mapping per run of whole slabs that stays under the 2 GB a mapping can
+	// cover, split into a DoubleBuffer per slab
+	private static DoubleBuffer[] map(final FileChannel channel, final FileChannel.MapMode mode, final int numFreqs, final int slabLength) throws IOException
+	{
+		final DoubleBuffer[] retval = new DoubleBuffer[numFreqs];
+		final long slabBytes = slabLength * 8L;
+		final int perMapping = (int) Math.max(Integer.MAX_VALUE / slabBytes, 1);
+		for (int first = 0; first < numFreqs; first += perMapping)
+		{
+			final int count = Math.min(perMapping, numFreqs - first);
+			final MappedByteBuffer mapping = channel.map(mode, HEADER_BYTES + first * slabBytes, count * slabBytes);
+			for (int f = 0; f < count; f++)
+			{
+				final ByteBuffer slab = mapping.duplicate();
+				slab.position((int) (f * slabBytes));
+				slab.limit((int) ((f + 1) * slabBytes));
+				retval[first + f] = slab.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+			}
+		}
+
+		return retval;
+	}
+
+	private static long checksum(final FileChannel channel, final long tableBytes) throws IOException
+	{
+		final CRC32 crc = new CRC32();
+		for (long pos = 0; pos < tableBytes; pos += Integer.MAX_VALUE)
+		{
+			crc.update(channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + pos, Math.min(Integer.MAX_VALUE, tableBytes - pos)));
+		}
+
+		return crc.getValue();
+	}
+
+	private File file(final String name, final int[] settings)
+	{
+		final StringBuilder sb = new StringBuilder(name);
+		for (final int setting : settings)
+		{
+			sb.append('-').append(setting);
+		}
+
+		return new File(dir, sb.append(".table").toString());
+	}
+
+	// The table with the settings, mapped read-only. It's built with filler and
+	// written first if there's no valid file for it yet. settings, at most 10 of them,
+	// must identify the contents, which are numFreqs slabs of slabLength doubles. name
+	// is only for the file name
+	public DoubleBuffer[] table(final String name, final int[] settings, final int numFreqs, final int slabLength, final Filler filler) throws IOException
+	{
+		final File file = file(name, settings);
+		final long tableBytes = (long) numFreqs * slabLength * 8;
+		final DoubleBuffer[] existing = open(file, settings, tableBytes, numFreqs, slabLength);
+		if (existing != null)
+		{
+			return existing;
+		}
+
+		dir.mkdirs();
+		final File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		try
+		{
+			try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw"))
+			{
+				final FileChannel channel = raf.getChannel();
+				raf.setLength(HEADER_BYTES + tableBytes);
+				final DoubleBuffer[] slabs = map(channel, FileChannel.MapMode.READ_WRITE, numFreqs, slabLength);
+				filler.fill(slabs);
+
+				channel.write(header(settings, tableBytes, checksum(channel, tableBytes)), 0);
+				channel.force(true);
+			}
+
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			tmp.delete();
+		}
+
+		final DoubleBuffer[] retval = open(file, settings, tableBytes, numFreqs, slabLength);
+		if (retval == null)
+		{
+			throw new IOException("Table file " + file + " was changed while it was written");
+		}
+
+		return retval;
+	}
+
+	// Records that the table matched its checksum. The stamp is whole seconds, which
+	// every file system keeps, and any later write to the file moves its modification
+	// time away from it. Where the file can't be written the checksum is just
+	// compared again next time
+	private static void stamp(final File file, final int position)
+	{
+		final long time = System.currentTimeMillis() / 1000 * 1000;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+		{
+			final FileChannel channel = raf.getChannel();
+			channel.write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(0, time), position);
+			channel.force(true);
+		}
+		catch (final IOException e)
+		{
+			return;
+		}
+
+		file.setLastModified(time);
+	}
+
+	// null if the file is missing, for other settings, of another version or corrupt
+	private DoubleBuffer[] open(final File file, final int[] settings, final long tableBytes, final int numFreqs, final int slabLength) throws IOException
+	{
+		if (!file.exists() || file.length() != HEADER_BYTES + tableBytes)
+		{
+			return null;
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+		{
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(header, 0);
+			header.flip();
+			final int crcPosition = crcPosition(settings);
+			final ByteBuffer expected = header(settings, tableBytes, 0);
+			if (header.remaining() < HEADER_BYTES || !header.duplicate().limit(crcPosition).equals(expected.limit(crcPosition)))
+			{
+				return null;
+			}
+
+			final long stamp = header.getLong(crcPosition + 8);
+			if (verify || stamp == 0 || stamp != file.lastModified())
+			{
+				if (header.getLong(crcPosition) != checksum(channel, tableBytes))
+				{
+					return null;
+				}
+
+				if (stamp == 0 || stamp != file.lastModified())
+				{
+					stamp(file, crcPosition + 8);
+				}
+			}
+
+			// Mappings stay valid after the channel is closed
+			return map(channel, FileChannel.MapMode.READ_ONLY, numFreqs, slabLength);
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package audio;
+
+// Chooses how each synth recoder holds its table within a memory budget, before
+// any pass runs, instead of running out of heap partway through a job. The
+// strategies, fastest first:
+// compressed: every entry as a 16 bit index into the table's distinct values.
+//   Slower to build, but the search streams a quarter of the memory and is as fast
+//   or faster
+// full: every row of every frequency as doubles,
+//   frequencies * 2 ampSteps * synthBlockSize * 8 bytes
+// integer: every entry as an 8 bit multiple of the table's step when the shape's
+//   entries fit, 16 bit otherwise. Searched with integer sums, and the candidates
+//   that could still be the best scored exactly. About as fast as full. Only for
+//   the greedy search of a single shape
+// sharded: the full table a frequency range at a time, every block searched over
+//   one range before the next is built. Only for the plain exhaustive search
+// onthefly: no table, entries are computed as they're needed
+// With a table cache, a full table is mapped from a file instead of taking heap,
+// so it's planned first
+public class TablePlanner
+{
+	static class Plan
+	{
+		int strategy;
+		int shards = 1;
+		long bytes;
+		boolean mapped;
+
+		@Override
+		public String toString()
+		{
+			final String name = strategy == SHARDED ? shards + " shards" : NAMES[strategy];
+			return name + (mapped ? " (mapped)" : "") + ", " + bytes / (1024 * 1024) + " MB";
+		}
+	}
+
+	static final int COMPRESSED = 0;
+	static final int FULL = 1;
+	static final int INTEGER = 2;
+	static final int SHARDED = 3;
+	static final int ON_THE_FLY = 4;
+	static final String[] NAMES = { "compressed", "full", "integer", "sharded", "onthefly" };
+
+	// Shard state per block
+	private static final long SHARD_BLOCK_BYTES = 48;
+
+	private final long budget;
+	private final int strategy;
+	private final int rate;
+	private final long blocks;
+
+	// strategy is -1 for the fastest that fits. blocks counts the blocks of every
+	// channel
+	public TablePlanner(final long budget, final int strategy, final int rate, final long blocks)
+	{
+		this.budget = budget;
+		this.strategy = strategy;
+		this.rate = rate;
+		this.blocks = blocks;
+	}
+
+	public long budget()
+	{
+		return budget;
+	}
+
+	private Plan estimate(final SynthRecoder coder, final int strategy, final int shards)
+	{
+		final Plan retval = new Plan();
+		retval.strategy = strategy;
+		retval.shards = shards;
+		retval.bytes = coder.tableBytes(strategy, shards, rate);
+		if (strategy == SHARDED)
+		{
+			retval.bytes += blocks * SHARD_BLOCK_BYTES;
+		}
+
+		return retval;
+	}
+
+	// The smallest plan the strategy allows, which is what gets reported when nothing
+	// fits
+	Plan smallest(final SynthRecoder coder)
+	{
+		final int wanted = strategy >= 0 ? strategy : ON_THE_FLY;
+		return estimate(coder, wanted, wanted == SHARDED ? coder.numFreqs() : 1);
+	}
+
+	// The fastest plan for coder that fits its share of the budget, null if none
+	// does. Shapes of a joint pass split the budget between them and can't be
+	// sharded, since the joint search sweeps all frequencies at once, or use integer
+	// tables, since it scores candidates one at a time
+	Plan plan(final SynthRecoder coder, final int share)
+	{
+		final long available = budget / share;
+		if (coder.mapsTables() && (strategy < 0 || strategy == FULL))
+		{
+			final Plan plan = estimate(coder, FULL, 1);
+			plan.mapped = true;
+			if (plan.bytes <= available)
+			{
+				return plan;
+			}
+		}
+
+		for (int s = COMPRESSED; s <= ON_THE_FLY; s++)
+		{
+			if (strategy >= 0 && s != strategy)
+			{
+				continue;
+			}
+
+			if (s == SHARDED)
+			{
+				if (!feasible(coder, SHARDED, share))
+				{
+					continue;
+				}
+
+				for (int shards = 2; shards <= coder.numFreqs(); shards++)
+				{
+					final Plan plan = estimate(coder, SHARDED, shards);
+					if (plan.bytes <= available)
+					{
+						return plan;
+					}
+				}
+
+				continue;
+			}
+
+			if (!feasible(coder, s, share))
+			{
+				continue;
+			}
+
+			final Plan plan = estimate(coder, s, 1);
+			if (plan.bytes <= available)
+			{
+				return plan;
+			}
+		}
+
+		return null;
+	}
+
+	// Whether coder can hold its table with strategy at all, as one of share shapes
+	// of a pass. The compressed and integer tables check the same before building
+	static boolean feasible(final SynthRecoder coder, final int strategy, final int share)
+	{
+		if (strategy == SHARDED)
+		{
+			return share == 1 && coder.shardable();
+		}
+
+		if (strategy == INTEGER)
+		{
+			return share == 1 && coder.integral();
+		}
+
+		if (strategy == COMPRESSED)
+		{
+			return coder.compressible();
+		}
+
+		return true;
+	}
+
+	public static int strategy(final String name)
+	{
+		for (int s = 0; s < NAMES.length; s++)
+		{
+			if (NAMES[s].equals(name))
+			{
+				return s;
+			}
+		}
+
+		return -1;
+	}
+}
@@ -9,6 +9,13 @@ import java.nio.ByteOrder;
 public class WaveDecoder
 {
 	static public WaveData decode(final String filename) throws Exception
+	{
+		return decode(filename, 1);
+	}
+
+	// Also reads files written by WaveEncoder in compressed mode, decoding their frames
+	// on numThreads threads
+	static public WaveData decode(final String filename, final int numThreads) throws Exception
 	{
 		final InputStream inputStream = new FileInputStream(filename);
 		final long fileSize = new File(filename).length();
@@ -16,6 +23,11 @@ public class WaveDecoder
 		inputStream.read(allBytes);
 		inputStream.close();
 
+		if (LosslessCodec.isEncoded(allBytes))
+		{
+			return LosslessCodec.decode(allBytes, numThreads);
+		}
+
 		final ByteBuffer bb = ByteBuffer.wrap(allBytes);
 		bb.order(ByteOrder.LITTLE_ENDIAN);
 
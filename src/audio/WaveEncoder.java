@@ -1,5 +1,6 @@
 package audio;
 
+import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
@@ -9,6 +10,14 @@ public class WaveEncoder
 {
 	byte bits;
 	String filename;
+	private OutputStream outputStream;
+	private boolean stereo;
+	private int samples;
+	private int written;
+	private boolean compressed = false;
+	private int rate;
+	private int numThreads = 1;
+	private int[][] pcm;
 
 	public WaveEncoder(final byte bits, final String filename)
 	{
@@ -16,23 +25,35 @@ public class WaveEncoder
 		this.filename = filename;
 	}
 
-	public void encode(final WaveData in) throws Exception
+	// Streaming use is begin, then write for each chunk of samples in order, then end
+	public void begin(final int rate, final boolean stereo, final int samples) throws Exception
 	{
-		int fileSize = 44;
-		if (in.stereo())
-		{
-			fileSize += 2 * (bits / 8) * in.samples();
-		}
-		else
+		this.stereo = stereo;
+		this.samples = samples;
+		written = 0;
+		if (compressed)
 		{
-			fileSize += bits / 8 * in.samples();
+			if (bits != 8 && bits != 16 && bits != 32)
+			{
+				throw new Exception("Only 8, 16 and 32 bit output can be compressed");
+			}
+
+			// Samples are collected as integers and compressed by end
+			pcm = new int[stereo ? 2 : 1][samples];
+			this.rate = rate;
+			return;
 		}
 
-		final OutputStream outputStream = new FileOutputStream(filename);
-		final byte[] data = new byte[fileSize];
+		final byte[] data = new byte[44];
 		final ByteBuffer bb = ByteBuffer.wrap(data);
 		bb.order(ByteOrder.LITTLE_ENDIAN);
 
+		int dataSize = samples * (bits / 8);
+		if (stereo)
+		{
+			dataSize *= 2;
+		}
+
 		bb.position(0);
 		bb.put((byte) 'R');
 		bb.put((byte) 'I');
@@ -40,7 +61,7 @@ public class WaveEncoder
 		bb.put((byte) 'F');
 		// 4
 
-		bb.putInt(fileSize - 8);
+		bb.putInt(dataSize + 36);
 		// 8
 
 		bb.put((byte) 'W');
@@ -58,7 +79,7 @@ public class WaveEncoder
 		bb.putShort((short) 1);
 		// 22
 
-		if (in.stereo())
+		if (stereo)
 		{
 			bb.putShort((short) 2);
 		}
@@ -68,11 +89,11 @@ public class WaveEncoder
 		}
 		// 24
 
-		bb.putInt(in.rate());
+		bb.putInt(rate);
 		// 28
 
-		int byteRate = in.rate() * (bits / 8);
-		if (in.stereo())
+		int byteRate = rate * (bits / 8);
+		if (stereo)
 		{
 			byteRate *= 2;
 		}
@@ -81,7 +102,7 @@ public class WaveEncoder
 		// 32
 
 		short alignment = (short) (bits / 8);
-		if (in.stereo())
+		if (stereo)
 		{
 			alignment *= 2;
 		}
@@ -97,60 +118,39 @@ public class WaveEncoder
 		bb.put((byte) 'a');
 		// 40
 
-		int dataSize = in.samples() * (bits / 8);
-		if (in.stereo())
-		{
-			dataSize *= 2;
-		}
-
 		bb.putInt(dataSize);
 		// 44
 
-		// Data starts here
-		if (bits == 8)
-		{
-			if (!in.stereo())
-			{
-				mono8Bit(in, bb);
-			}
-			else
-			{
-				stereo8Bit(in, bb);
-			}
-		}
-		else if (bits == 16)
-		{
-			if (!in.stereo())
-			{
-				mono16Bit(in, bb);
-			}
-			else
-			{
-				stereo16Bit(in, bb);
-			}
-		}
-		else if (bits == 32)
+		outputStream = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16);
+		outputStream.write(data);
+	}
+
+	public void encode(final WaveData in) throws Exception
+	{
+		begin(in.rate(), in.stereo(), in.samples());
+		write(in);
+		end();
+	}
+
+	public void end() throws Exception
+	{
+		if (compressed)
 		{
-			if (!in.stereo())
+			if (written != samples)
 			{
-				mono32Bit(in, bb);
+				throw new Exception("Expected " + samples + " samples but " + written + " were written");
 			}
-			else
-			{
-				stereo32Bit(in, bb);
-			}
-		}
-		else if (!in.stereo())
-		{
-			mono64Bit(in, bb);
-		}
-		else
-		{
-			stereo64Bit(in, bb);
+
+			outputStream = new FileOutputStream(filename);
+			outputStream.write(LosslessCodec.encode(rate, bits, pcm, numThreads));
+			pcm = null;
 		}
 
-		outputStream.write(data);
 		outputStream.close();
+		if (written != samples)
+		{
+			throw new Exception("Expected " + samples + " samples but " + written + " were written");
+		}
 	}
 
 	private void mono16Bit(final WaveData in, final ByteBuffer bb)
@@ -219,6 +219,14 @@ public class WaveEncoder
 		}
 	}
 
+	// Writes LosslessCodec's compressed format instead of a WAV file. WaveDecoder reads
+	// either
+	public void setCompressed(final int numThreads)
+	{
+		compressed = true;
+		this.numThreads = numThreads;
+	}
+
 	private void stereo16Bit(final WaveData in, final ByteBuffer bb)
 	{
 		for (int i = 0; i < in.samples(); i++)
@@ -326,4 +334,95 @@ public class WaveEncoder
 			bb.put((byte) val);
 		}
 	}
+
+	public void write(final WaveData in) throws Exception
+	{
+		if (in.stereo() != stereo)
+		{
+			throw new Exception("Chunks must match the channels the file was begun with");
+		}
+
+		int size = in.samples() * (bits / 8);
+		if (in.stereo())
+		{
+			size *= 2;
+		}
+
+		final byte[] data = new byte[size];
+		final ByteBuffer bb = ByteBuffer.wrap(data);
+		bb.order(ByteOrder.LITTLE_ENDIAN);
+
+		// Data starts here
+		if (bits == 8)
+		{
+			if (!in.stereo())
+			{
+				mono8Bit(in, bb);
+			}
+			else
+			{
+				stereo8Bit(in, bb);
+			}
+		}
+		else if (bits == 16)
+		{
+			if (!in.stereo())
+			{
+				mono16Bit(in, bb);
+			}
+			else
+			{
+				stereo16Bit(in, bb);
+			}
+		}
+		else if (bits == 32)
+		{
+			if (!in.stereo())
+			{
+				mono32Bit(in, bb);
+			}
+			else
+			{
+				stereo32Bit(in, bb);
+			}
+		}
+		else if (!in.stereo())
+		{
+			mono64Bit(in, bb);
+		}
+		else
+		{
+			stereo64Bit(in, bb);
+		}
+
+		if (compressed)
+		{
+			// Read back the integers the WAV file would hold
+			bb.position(0);
+			for (int i = 0; i < in.samples(); i++)
+			{
+				for (int c = 0; c < pcm.length; c++)
+				{
+					if (bits == 8)
+					{
+						pcm[c][written + i] = (bb.get() & 0xff) - 128;
+					}
+					else if (bits == 16)
+					{
+						pcm[c][written + i] = bb.getShort();
+					}
+					else
+					{
+						pcm[c][written + i] = bb.getInt();
+					}
+				}
+			}
+		}
+		else
+		{
+			outputStream.write(data);
+		}
+
+		written += in.samples();
+	}
 }
@@ -0,0 +1,54 @@
+package audio;
+
+// No table at all: every entry is computed from the recoder's wave function as it's
+// needed. Covers every frequency, so it also stands in for the frequencies outside
+// the shard that is built
+class WaveTable extends SynthTable
+{
+	private final SynthRecoder coder;
+	private final int rate;
+
+	WaveTable(final SynthRecoder coder, final int rate)
+	{
+		super(coder.synthMinFreq, coder.synthMaxFreq, coder.synthModRate);
+		this.coder = coder;
+		this.rate = rate;
+	}
+
+	@Override
+	boolean covers(final int f)
+	{
+		return true;
+	}
+
+	@Override
+	double get(final int f, final int row, final int s)
+	{
+		return coder.wave(f, coder.amplitude(row), s * 1.0 / rate);
+	}
+
+	@Override
+	double[] row(final int f, final int row, final double[] buffer)
+	{
+		final double amplitude = coder.amplitude(row);
+		for (int s = 0; s < synthModRate; s++)
+		{
+			buffer[s] = coder.wave(f, amplitude, s * 1.0 / rate);
+		}
+
+		return buffer;
+	}
+
+	@Override
+	double error(final double[] data, final int start, final int f, final int row)
+	{
+		final double amplitude = coder.amplitude(row);
+		double error = 0;
+		for (int i = start; i < start + synthModRate; i++)
+		{
+			error += Math.abs(data[i] - coder.wave(f, amplitude, (i - start) * 1.0 / rate));
+		}
+
+		return error;
+	}
+}